@@ -0,0 +1,86 @@
+package simpledb;
+
+/**
+ * Adaptive Replacement Cache (Megiddo and Modha). Resident pages are split
+ * between T1 (seen once recently) and T2 (seen at least twice), and the
+ * ids of pages recently evicted from each are kept on the ghost lists B1
+ * and B2. A miss that hits a ghost list shifts the target size p of T1
+ * towards whichever side would have kept the page, so the cache adapts
+ * between recency and frequency as the workload changes.
+ */
+public class ArcEvictionPolicy implements EvictionPolicy {
+
+    private final RecencyList t1 = new RecencyList();
+    private final RecencyList t2 = new RecencyList();
+    private final RecencyList b1 = new RecencyList();
+    private final RecencyList b2 = new RecencyList();
+
+    private final int capacity;
+    // target size of T1
+    private int p = 0;
+
+    public ArcEvictionPolicy(int numPages) {
+        this.capacity = Math.max(1, numPages);
+    }
+
+    public void pageAccessed(PageId pid) {
+        boolean dirty = t1.isDirty(pid);
+        if (t1.remove(pid) || t2.contains(pid)) {
+            t2.addFirst(pid);
+            if (dirty) {
+                t2.setDirty(pid, true);
+            }
+        }
+    }
+
+    public void pageInserted(PageId pid) {
+        if (t1.contains(pid) || t2.contains(pid)) {
+            pageAccessed(pid);
+        } else if (b1.remove(pid)) {
+            p = Math.min(capacity, p + Math.max(b2.size() / Math.max(b1.size(), 1), 1));
+            t2.addFirst(pid);
+        } else if (b2.remove(pid)) {
+            p = Math.max(0, p - Math.max(b1.size() / Math.max(b2.size(), 1), 1));
+            t2.addFirst(pid);
+        } else {
+            t1.addFirst(pid);
+        }
+        // keep the directory at most twice the cache size
+        while (t1.size() + b1.size() > capacity && b1.size() > 0) {
+            b1.removeLast();
+        }
+        while (t1.size() + t2.size() + b1.size() + b2.size() > 2 * capacity
+                && b2.size() > 0) {
+            b2.removeLast();
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        if (t1.remove(pid)) {
+            b1.addFirst(pid);
+        } else if (t2.remove(pid)) {
+            b2.addFirst(pid);
+        }
+    }
+
+    public void pageDirtied(PageId pid) {
+        t1.setDirty(pid, true);
+        t2.setDirty(pid, true);
+    }
+
+    public void pageCleaned(PageId pid) {
+        t1.setDirty(pid, false);
+        t2.setDirty(pid, false);
+    }
+
+    public PageId chooseVictim(PageId incoming, Evictable filter) {
+        boolean fromT1 = t1.size() > 0
+                && (t1.size() > p || (incoming != null && b2.contains(incoming)
+                                      && t1.size() == p));
+        PageId victim = fromT1 ? t1.findLast(filter) : t2.findLast(filter);
+        if (victim == null) {
+            victim = fromT1 ? t2.findLast(filter) : t1.findLast(filter);
+        }
+        return victim;
+    }
+}
@@ -7,12 +7,11 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.*;
-import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 
@@ -30,8 +29,6 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public class BufferPool {
     /** Bytes per page, including header. */
     private static final int DEFAULT_PAGE_SIZE = 4096;
-    public static final int READ_LOCK = 1;
-    public static final int WRITE_LOCK = 2;
 
     private static int pageSize = DEFAULT_PAGE_SIZE;
     
@@ -41,537 +38,1525 @@ public class BufferPool {
     public static final int DEFAULT_PAGES = 50;
 
     private int numPages;
-    ConcurrentHashMap<Integer, Page> pageHash;
-    public PriorityQueue<Integer> lruQueue;
+
+    /**
+     * One slot of the page table. A frame is published in the table before
+     * its page has been read, so that concurrent misses on the same page
+     * wait for one read instead of each doing their own.
+     * <p>
+     * A frame with a positive pin count is in use and is never evicted.
+     * Eviction claims a frame by swinging its pin count from 0 to -1, after
+     * which it can no longer be pinned.
+     */
+    static class Frame {
+        final PageId pid;
+        volatile Page page;
+        // counted down once the read finished, successfully or not
+        private final CountDownLatch loaded;
+        private final AtomicInteger pins = new AtomicInteger(0);
+        // when the page was last requested, for the page cleaner
+        volatile long lastAccess = System.nanoTime();
+        // recLSN: log position at or before the first update record whose
+        // change is not on disk yet, or -1. Set and cleared holding the
+        // frame's monitor.
+        volatile long recLsn = -1;
+        // the ring of the scan that read the page in, until somebody
+        // else asks for the page
+        volatile Ring ring = null;
+
+        /** A frame whose page is still to be read. */
+        Frame(PageId pid) {
+            this.pid = pid;
+            this.loaded = new CountDownLatch(1);
+        }
+
+        /** A frame for a page that is already in memory. */
+        Frame(Page page) {
+            this(page.getId());
+            this.page = page;
+            this.loaded.countDown();
+        }
+
+        /** @return false while the page is still being read */
+        boolean isLoaded() {
+            return loaded.getCount() == 0;
+        }
+
+        void finishLoading(Page page) {
+            this.page = page;
+            this.loaded.countDown();
+        }
+
+        /** @return false if the frame is being evicted */
+        boolean tryPin() {
+            while (true) {
+                int n = pins.get();
+                if (n < 0) {
+                    return false;
+                }
+                if (pins.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void unpin() {
+            pins.decrementAndGet();
+        }
+
+        boolean isPinned() {
+            return pins.get() != 0;
+        }
+
+        /** @return true if the frame was unpinned and is now claimed */
+        boolean claimForEviction() {
+            return pins.compareAndSet(0, -1);
+        }
+
+        /** Gives back a claimed frame that was not evicted after all. */
+        void releaseClaim() {
+            pins.set(0);
+        }
+
+        /** @return the page, or null if reading it failed */
+        Page awaitPage() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    loaded.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return page;
+        }
+    }
+
+    /**
+     * A small ring of frames that a big scan recycles, so that reading a
+     * table bigger than the pool does not push out everybody else's pages
+     * (see {@link #newRing}). A page the scan reads in belongs to the ring
+     * until another request asks for it. Once the ring is full, the next
+     * page the scan reads takes the place of the oldest page in the ring,
+     * instead of a victim chosen by the eviction policy.
+     */
+    public static class Ring {
+        private final int capacity;
+        private final ArrayDeque<Frame> frames = new ArrayDeque<Frame>(); // protected by this
+
+        private Ring(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /** @return the most pages the ring holds */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        synchronized void add(Frame frame) {
+            frames.add(frame);
+        }
+
+        /** @return the oldest frame, taken out of the ring, if the ring
+            is full, or else null */
+        synchronized Frame pollIfFull() {
+            return frames.size() >= capacity ? frames.poll() : null;
+        }
+    }
+
+    // page table, keyed by the full PageId (not its hash code, which
+    // collides across tables). Lookups take no lock.
+    private final ConcurrentHashMap<PageId, Frame> pageTable;
+    // frames in use or reserved for a read in progress; never above numPages
+    private final AtomicInteger residentFrames;
+    // decides which page to give up when the pool is full. Policies are
+    // not thread safe, so calls into it are made holding policyLatch; a
+    // hit only updates the policy if it gets the latch without waiting.
+    private final EvictionPolicy policy;
+    private final ReentrantLock policyLatch;
+    // unpinned clean pages, which can be evicted without a write
+    private final EvictionPolicy.Evictable cleanFrames;
+    // unpinned pages holding no uncommitted changes, which can always be
+    // evicted (after writing them, if they are dirty)
+    private final EvictionPolicy.Evictable committedFrames;
+    // unpinned pages, which can be evicted under STEAL
+    private final EvictionPolicy.Evictable unpinnedFrames;
+    // whether uncommitted pages may be written out to make room
+    private volatile boolean steal;
+    // whether commit leaves the transaction's pages dirty in the pool
+    private volatile boolean noForce;
+    // whether transactions lock the records they use, under intention
+    // locks on their pages and tables, instead of whole pages
+    private volatile boolean recordLocking;
+    // record locks a transaction may hold on one page before they are
+    // traded for a lock on the page
+    private volatile int recordLockEscalation;
+    // page locks a transaction may hold in one table before the shared
+    // ones are traded for a lock on the table
+    private volatile int tableLockEscalation;
+
+    // background writers, and the share of the pool that may be dirty
+    // before they start (high) and when they stop (low)
+    private final PageCleaner pageCleaner;
+    private volatile int pageCleanerThreads;
+    private volatile double dirtyHighWatermark;
+    private volatile double dirtyLowWatermark;
+    // pages with a recLSN below this are written by the page cleaner, so
+    // the log before the last checkpoint is no longer needed
+    private volatile long checkpointLsn = -1;
+
+    // background readers for scans, and the most pages a scan may have
+    // them read ahead of it
+    private final Prefetcher prefetcher;
+    private volatile int readAhead;
+    // pages in the ring of a big scan; 0 turns rings off
+    private volatile int ringSize;
+    // the ring each table bigger than the pool is probed through for
+    // free space by inserts
+    private final ConcurrentHashMap<Integer,Ring> insertRings;
+
+    // getPage requests served from the pool / read from disk, and pages
+    // read ahead of a scan
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder prefetches;
     
-    //Holds Page to its Lock. May or may not be locked.
-    private HashMap<PageId, PageLock> pageToLock; 
-    //The transID shows the pages that are locked, from which we can get the Locks.
-    private HashMap<TransactionId, Set<PageId>> transactionToPage; 
+    // page locks of all transactions
+    private final LockManager lockManager;
+
+    // old committed page versions, for snapshot transactions, and the
+    // read sets of optimistic ones
+    private final VersionStore versions;
+
+    // private copies of the pages each optimistic transaction has read
+    // or written
+    private final ConcurrentHashMap<TransactionId,Map<PageId,Page>> workspaces;
     
-    private HashMap<TransactionId, Set<PageId>> transactionToWLocks; 
-    private HashMap<TransactionId, Set<PageId>> transactionToRLocks;
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using the
+     * eviction policy named by the simpledb.evictionPolicy system property
+     * (LRU if it is not set). The pool runs in STEAL mode if the
+     * simpledb.steal property is true, and in NO FORCE mode if the
+     * simpledb.noForce property is true. Transactions lock records instead
+     * of pages if simpledb.recordLocks is true, escalating to a page lock
+     * past simpledb.recordLockEscalation (default 256) records on one
+     * page. Page locks held for reading are traded for a table lock past
+     * simpledb.tableLockEscalation (default 1000) pages of one table. Scans
+     * have up to simpledb.readAhead (default 32) pages read ahead of them
+     * by simpledb.prefetchThreads (default 2) threads. Scans of tables
+     * over a quarter of the pool recycle a ring of simpledb.bufferRing
+     * (default 32) pages. The
+     * page cleaner settings are
+     * read from simpledb.pageCleanerThreads (default 1),
+     * simpledb.dirtyHighWatermark (default 0.5) and
+     * simpledb.dirtyLowWatermark (default 0.25).
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @see EvictionPolicy#forName
+     */
+    public BufferPool(int numPages) {
+        this(numPages, EvictionPolicy.forName(
+                System.getProperty("simpledb.evictionPolicy", "lru"), numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and replaces
+     * them according to the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the eviction policy; must not be shared with another pool
+     */
+    public BufferPool(int numPages, EvictionPolicy policy) {
+        this.numPages = numPages;
+        this.pageTable = new ConcurrentHashMap<>();
+        this.residentFrames = new AtomicInteger(0);
+        this.policy = policy;
+        this.policyLatch = new ReentrantLock();
+        this.cleanFrames = new EvictionPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                Frame frame = pageTable.get(pid);
+                if (frame == null) {
+                    return false;
+                }
+                Page page = frame.page;
+                return page != null && page.isDirty() == null
+                    && !frame.isPinned();
+            }
+
+            public boolean allowsDirty() {
+                return false;
+            }
+        };
+        this.committedFrames = new EvictionPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                Frame frame = pageTable.get(pid);
+                if (frame == null) {
+                    return false;
+                }
+                Page page = frame.page;
+                return page != null && !isUncommitted(page)
+                    && !frame.isPinned();
+            }
+        };
+        this.unpinnedFrames = new EvictionPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                Frame frame = pageTable.get(pid);
+                return frame != null && frame.page != null
+                    && !frame.isPinned();
+            }
+        };
+        this.steal = Boolean.getBoolean("simpledb.steal");
+        this.noForce = Boolean.getBoolean("simpledb.noForce");
+        this.recordLocking = Boolean.getBoolean("simpledb.recordLocks");
+        this.setRecordLockEscalation(Integer.getInteger("simpledb.recordLockEscalation", 256));
+        this.setTableLockEscalation(Integer.getInteger("simpledb.tableLockEscalation", 1000));
+        this.pageCleaner = new PageCleaner(this);
+        this.setPageCleanerThreads(Integer.getInteger("simpledb.pageCleanerThreads", 1));
+        this.setDirtyPageWatermarks(
+                Double.parseDouble(System.getProperty("simpledb.dirtyHighWatermark", "0.5")),
+                Double.parseDouble(System.getProperty("simpledb.dirtyLowWatermark", "0.25")));
+        this.prefetcher = new Prefetcher(this, numPages);
+        this.prefetcher.setThreads(Integer.getInteger("simpledb.prefetchThreads", 2));
+        this.setReadAhead(Integer.getInteger("simpledb.readAhead", 32));
+        this.setRingSize(Integer.getInteger("simpledb.bufferRing", 32));
+        this.insertRings = new ConcurrentHashMap<Integer,Ring>();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.prefetches = new LongAdder();
+        this.lockManager = new LockManager();
+        this.versions = new VersionStore();
+        this.workspaces = new ConcurrentHashMap<TransactionId,Map<PageId,Page>>();
+    }
     
+    /**
+     * Switches between NO STEAL (the default), where a dirty page stays in
+     * the pool until its transaction completes, and STEAL, where a dirty
+     * page may be evicted once its update record is forced to the log.
+     * Under STEAL a transaction can dirty more pages than the pool holds;
+     * if it aborts, {@link LogFile#rollback} puts back the stolen pages.
+     */
+    public void setStealMode(boolean steal) {
+        this.steal = steal;
+    }
+
+    /** @return true if dirty pages may be evicted */
+    public boolean isStealMode() {
+        return steal;
+    }
+
+    /**
+     * Switches between FORCE (the default), where commit writes every page
+     * the transaction dirtied, and NO FORCE, where commit only forces the
+     * transaction's update records and its commit record to the log. Under
+     * NO FORCE the committed pages stay dirty in the pool and are written
+     * when they are evicted or the log is checkpointed.
+     */
+    public void setNoForceMode(boolean noForce) {
+        this.noForce = noForce;
+    }
+
+    /** @return true if commit leaves dirty pages in the pool */
+    public boolean isNoForceMode() {
+        return noForce;
+    }
+
+    /**
+     * Switches between page locking (the default) and record locking. With
+     * record locking, a transaction takes intention locks on the tables and
+     * pages it uses and locks just the records it reads or changes (see
+     * {@link #lockRecord}), so transactions working on different records of
+     * a hot page no longer wait for each other. Several transactions can
+     * then have uncommitted changes on one page, so only its committed
+     * content, the before image, is ever written to disk: the pool runs
+     * NO STEAL, whatever the STEAL setting. Change it only while no
+     * transaction is running.
+     */
+    public void setRecordLocking(boolean recordLocking) {
+        this.recordLocking = recordLocking;
+    }
+
+    /** @return true if transactions lock records instead of pages */
+    public boolean isRecordLocking() {
+        return recordLocking;
+    }
+
+    /**
+     * Sets how many records a transaction may lock on one page before its
+     * record locks there are traded for a single lock on the page. The
+     * trade only happens if the page lock can be had without waiting.
+     */
+    public void setRecordLockEscalation(int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("bad escalation threshold " + threshold);
+        }
+        this.recordLockEscalation = threshold;
+    }
+
+    /**
+     * Sets how many pages of one table a transaction may lock before the
+     * locks it only reads under are traded for a shared lock on the whole
+     * table (see {@link #lockTable}). The trade only happens if the table
+     * lock can be had without waiting, which is never the case while
+     * another transaction writes to the table.
+     */
+    public void setTableLockEscalation(int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("bad escalation threshold " + threshold);
+        }
+        this.tableLockEscalation = threshold;
+    }
+
+    /** @return how many pages of one table a transaction may lock before
+        trying to lock the table instead */
+    public int getTableLockEscalation() {
+        return tableLockEscalation;
+    }
+
+    /**
+     * Sets the number of background threads that write dirty pages before
+     * they are chosen for eviction; 0 turns the page cleaner off. Takes
+     * effect if the cleaner has not started yet.
+     *
+     * @see PageCleaner
+     */
+    public void setPageCleanerThreads(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("negative thread count " + threads);
+        }
+        this.pageCleanerThreads = threads;
+    }
+
+    /**
+     * Sets when the page cleaner runs. Once more than high of the pool's
+     * pages are dirty, the cleaner writes out the coldest of them until no
+     * more than low are left dirty.
+     *
+     * @param high fraction of the pool, between low and 1
+     * @param low fraction of the pool, between 0 and high
+     */
+    public void setDirtyPageWatermarks(double high, double low) {
+        if (low < 0 || low > high || high > 1) {
+            throw new IllegalArgumentException("bad dirty page watermarks "
+                    + high + "/" + low);
+        }
+        this.dirtyHighWatermark = high;
+        this.dirtyLowWatermark = low;
+    }
+
+    /**
+     * Sets the most pages a scan may have read ahead of it in the
+     * background (see {@link #prefetchPage}); 0 turns read-ahead off. A
+     * scan starts with a few pages, and reads further ahead while it keeps
+     * catching up with reads still in progress.
+     */
+    public void setReadAhead(int maxPages) {
+        if (maxPages < 0) {
+            throw new IllegalArgumentException("negative read-ahead " + maxPages);
+        }
+        this.readAhead = maxPages;
+    }
+
+    /** @return the most pages a scan may have read ahead of it; never
+        more than a quarter of the pool, so that a scan does not push out
+        the pages it is about to read */
+    public int getReadAhead() {
+        return Math.min(readAhead, numPages / 4);
+    }
+
+    /**
+     * Sets how many pages a big scan recycles (see {@link #newRing}); 0
+     * turns rings off, so that scans go through the eviction policy like
+     * any other read. The ring never takes more than an eighth of the
+     * pool.
+     */
+    public void setRingSize(int pages) {
+        if (pages < 0) {
+            throw new IllegalArgumentException("negative ring size " + pages);
+        }
+        this.ringSize = pages;
+    }
+
+    /**
+     * Returns a ring for a scan over the given number of pages, if they are
+     * more than a quarter of the pool: the scan then reads its pages into
+     * the ring (see {@link #pinPage(TransactionId, PageId, Permissions,
+     * Ring)}), and the rest of the pool keeps its working set. Pages that
+     * were in the pool already are used where they are.
+     *
+     * @return the ring, or null if the scan should go through the pool
+     *         like any other read
+     */
+    public Ring newRing(int scanPages) {
+        int size = Math.min(ringSize, Math.max(2, numPages / 8));
+        if (ringSize == 0 || scanPages <= numPages / 4) {
+            return null;
+        }
+        return new Ring(size);
+    }
+
+    /**
+     * Returns the ring inserts into a table probe its pages for free space
+     * through. Each insert may probe every page of the table; that only
+     * goes through a ring when the table is bigger than the whole pool,
+     * since a smaller one is better left cached for the next insert. The
+     * ring is shared by all inserts into the table, so pages one insert
+     * found full are recycled by the next.
+     *
+     * @return the ring, or null if the table should be probed through the
+     *         pool like any other read
+     */
+    public Ring insertRing(int tableId, int tablePages) {
+        if (ringSize == 0 || tablePages <= numPages) {
+            return null;
+        }
+        return insertRings.computeIfAbsent(tableId, t -> this.newRing(tablePages));
+    }
+
+    /**
+     * Sets the number of background threads that read pages ahead of
+     * scans. Takes effect if they have not started yet.
+     */
+    public void setPrefetchThreads(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("negative thread count " + threads);
+        }
+        prefetcher.setThreads(threads);
+    }
+
+    /** Stops the page cleaner, prefetcher and vacuum threads of a pool
+        that is no longer used. */
+    void stopBackgroundThreads() {
+        pageCleaner.stop();
+        prefetcher.stop();
+        versions.stopVacuum();
+    }
+
+    /** @return the old page versions kept for snapshot transactions */
+    VersionStore getVersionStore() {
+        return versions;
+    }
+
+    /** @return the lock manager holding this pool's page locks */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    public static int getPageSize() {
+      return pageSize;
+    }
     
-    // a lock attained before grabbing any lock
-    public Lock transitionLock;
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setPageSize(int pageSize) {
+    	BufferPool.pageSize = pageSize;
+    }
     
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetPageSize() { BufferPool.pageSize = DEFAULT_PAGE_SIZE; }
+
+    public static Page pidToPage (PageId pid) {
+    	int tableID = pid.getTableId();
+    	DbFile file = Database.getCatalog().getDatabaseFile(tableID);
+    	Page thePage = file.readPage(pid);
+    	return thePage;
+    }
     /**
-     * Helper class for lock manager
-     * */
-    public class PageLock {
+     * Retrieve the specified page with the associated permissions.
+     * Will acquire a lock and may block if that lock is held by another
+     * transaction.
+     * <p>
+     * The retrieved page should be looked up in the buffer pool.  If it
+     * is present, it should be returned.  If it is not present, it should
+     * be added to the buffer pool and returned.  If there is insufficient
+     * space in the buffer pool, a page should be evicted and the new page
+     * should be added in its place.
+     * <p>
+     * The page is not pinned, so the pool may evict it as soon as this
+     * returns; callers that keep working on it should use {@link #pinPage}.
+     * <p>
+     * A snapshot transaction takes no lock, and gets the page as of its
+     * snapshot instead (see {@link VersionStore}), whatever the permissions.
+     * Neither does an optimistic transaction, which gets its own copy of
+     * the page.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @throws TransactionAbortedException if the lock can't be granted
+     *         (deadlock)
+     * @throws IOException 
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException, IOException {
+        if (isSnapshot(tid)) {
+            return this.snapshotPage(tid, pid, null);
+        }
+        if (isOptimistic(tid)) {
+            return this.privatePage(tid, pid, null);
+        }
+        if (perm == Permissions.READ_WRITE) {
+            checkWritable(tid);
+        }
+        // 1: Get the lock. This may park the thread until the holder
+        // releases it; nothing else is held while waiting.
+        this.getPageLock(tid, pid, perm);
 
-    	// the lock itself
-        public ReadWriteLock lock;
-        
-        // boolean to see if lock is read locked
-        public Boolean readLocked;
-        // boolean to see if lock is write locked
-        public Boolean writeLocked;
-        
-        // the page
-        private PageId pid;
-        
-        // flag to see if write lock is attempting to grab
-        // a read lock, so that read locks don't hog
-        private boolean acquiringWriteLock;
-        
-        // Keep track of all transactions that have a read lock
-        public HashSet<TransactionId> readLockTransactions;
-        
-        public void acquireLock(int lockType, TransactionId tid) throws IOException 
-       {
-        	// deadlock resolution method
-        	long startTime = System.currentTimeMillis();
-        	
-        	boolean locked = true;
-        	
-        	while (locked == true) {
-        		long currentTime = System.currentTimeMillis();
-        		
-        		// if 150 milliseconds have passed since we 
-        		// started trying to get the lock, we call it a deadlock
-        		if (currentTime - startTime >= 150) {
-        			
-        			// handle deadlock
-        			try {
-						throw new TransactionAbortedException();
-					} catch (TransactionAbortedException e) {
-						// System.out.println("--------------------\n");
-						// System.out.println("Got new deadlock!\n");
-						// System.out.println("--------------------\n");
-						// e.printStackTrace();
-						// homicidal method: abort all other transactions
-						for (TransactionId someTid : transactionToPage.keySet()) {
-	        				if (someTid.myid != tid.myid) {
-	                			transactionComplete(someTid, false);	                			
-	        				}
-	        			}
-						return;
-					}        			
-        		}
-            	if (lockType == READ_LOCK) {
-            		locked = this.writeLocked;
-            	}
-            	else if (lockType == WRITE_LOCK) {
-            		locked = this.writeLocked || this.readLocked;
-            	}
-            	// pause after each check
-            	try {
-					Thread.sleep(1);
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-        	}
+        // 2: Find the page, reading it in if needed.
+        return this.lookUpFrame(pid, false).page;
+    }
+
+    /**
+     * A pinned page. The page stays in the pool, at the same address,
+     * until the handle is closed; use it with try-with-resources.
+     */
+    public class PageHandle implements AutoCloseable {
+        private final Frame frame;
+        // a page that is not in the pool: a snapshot version or a
+        // private copy
+        private final Page version;
+        private boolean closed = false;
+
+        private PageHandle(Frame frame) {
+            this.frame = frame;
+            this.version = null;
         }
-        
-        
-        public PageLock(PageId pid) {
-            this.lock = new ReentrantReadWriteLock();
-            this.readLocked = false;
-            this.writeLocked = false;
-            this.pid = pid;
-            this.acquiringWriteLock = false;
-            this.readLockTransactions = new HashSet<TransactionId>();
-            
+
+        private PageHandle(Page version) {
+            this.frame = null;
+            this.version = version;
         }
 
-        public boolean isReadLocked() {
-            return this.readLocked;
+        public Page getPage() {
+            return frame == null ? version : frame.page;
         }
-        
-        public boolean isWriteLocked() {
-            return this.writeLocked;
+
+        /** Unpins the page. Closing a handle twice has no effect. */
+        public void close() {
+            if (!closed) {
+                closed = true;
+                if (frame != null) {
+                    frame.unpin();
+                }
+            }
         }
-        
-        public void writeLock(TransactionId tid) throws IOException {
-    		// System.out.println("writeLock: tryna get a lock. TID: " + tid.myid);
-    		// System.out.println("PID: " + pid.getPageNumber());
-    		// System.out.println("");
-
-        	if (this.readLocked) {
-        		if (transactionToRLocks.containsKey(tid)) {
-            		if (transactionToRLocks.get(tid).contains(pid)) {
-            			// simply upgrade
-            			readUnlock(tid);
-            			acquireLock(WRITE_LOCK, tid);
-            		}
-            		else {
-            			acquireLock(WRITE_LOCK, tid);
-            		}
-        		}
-
-        		else {
-//        			// System.out.println("writeLock: already read locked");
-            		acquiringWriteLock = true;
-            		acquireLock(WRITE_LOCK, tid);
-            		acquiringWriteLock = false;
-            		
-        		}
-        	}
-        	// if we have already write locked this tid
-        	else if (this.writeLocked) {
-        		if (transactionToWLocks.containsKey(tid)) {
-            		if (transactionToWLocks.get(tid).contains(pid)) {
-            			// pass, we are already locked!
-            		}
-            		else {
-            			acquireLock(WRITE_LOCK, tid);
-            		}
-        		}
-
-        		// now we wait:
-        		else {
-            		acquireLock(WRITE_LOCK, tid);            		
-        		}
-        	}
-        	
-    		// System.out.println("writeLock: got a lock. TID: " + tid.myid);
-    		// System.out.println("PID: " + pid.getPageNumber());
-    		// System.out.println("");
-
-        	this.writeLocked = true;
-//        	// wrapper after doing any locks
-//    		BufferPool.this.transitionLock.unlock();
+    }
+
+    /**
+     * Like {@link #getPage}, but also pins the page so that it can't be
+     * evicted or replaced while the caller works on it. The caller must
+     * close the returned handle when it is done with the page.
+     */
+    public PageHandle pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException, IOException {
+        return this.pinPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Like {@link #pinPage(TransactionId, PageId, Permissions)}, but a page
+     * that has to be read in goes into the given ring of a big scan.
+     *
+     * @param ring the scan's ring, or null
+     * @see #newRing
+     */
+    public PageHandle pinPage(TransactionId tid, PageId pid, Permissions perm, Ring ring)
+        throws TransactionAbortedException, DbException, IOException {
+        if (isSnapshot(tid)) {
+            return new PageHandle(this.snapshotPage(tid, pid, ring));
+        }
+        if (isOptimistic(tid)) {
+            return new PageHandle(this.privatePage(tid, pid, ring));
+        }
+        if (perm == Permissions.READ_WRITE) {
+            checkWritable(tid);
+        }
+        this.getPageLock(tid, pid, perm);
+        return new PageHandle(this.lookUpFrame(pid, true, ring));
+    }
+
+    private static boolean isSnapshot(TransactionId tid) {
+        return tid != null && tid.getIsolation() == TransactionId.Isolation.SNAPSHOT;
+    }
+
+    private static boolean isOptimistic(TransactionId tid) {
+        return tid != null && tid.getIsolation() == TransactionId.Isolation.OPTIMISTIC;
+    }
+
+    /** @return the optimistic transaction's copy of the page, made from
+        the committed content the first time it asks for the page */
+    private Page privatePage(TransactionId tid, PageId pid, Ring ring) throws DbException {
+        Map<PageId,Page> workspace =
+            workspaces.computeIfAbsent(tid, t -> new ConcurrentHashMap<PageId,Page>());
+        Page page = workspace.get(pid);
+        if (page == null) {
+            Frame frame = this.lookUpFrame(pid, true, ring);
+            try {
+                page = versions.readCommitted(tid, pid, () -> frame.page);
+            } finally {
+                frame.unpin();
+            }
+            workspace.put(pid, page);
+        }
+        return page;
+    }
+
+    /** @return the page as the snapshot of tid sees it */
+    private Page snapshotPage(TransactionId tid, PageId pid, Ring ring) throws DbException {
+        long ts = versions.snapshotOf(tid);
+        Frame frame = this.lookUpFrame(pid, true, ring);
+        try {
+            return versions.read(pid, ts, frame.page);
+        } finally {
+            frame.unpin();
+        }
+    }
+
+    /**
+     * Locks a page the way the locking mode wants: an intention lock on its
+     * table first, then a shared or exclusive lock on the page (with page
+     * locking) or an intention lock on it (with record locking, where
+     * lockRecord locks the records). Reading needs no lock below a table
+     * the transaction has locked for reading, and once it holds more page
+     * locks in a table than the escalation threshold, it tries to trade the
+     * shared ones for a shared lock on the table.
+     */
+    private void getPageLock(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        LockManager.LockMode mode;
+        if (perm == Permissions.READ_ONLY) {
+            mode = LockManager.LockMode.SHARED;
+        } else if (perm == Permissions.READ_WRITE) {
+            mode = LockManager.LockMode.EXCLUSIVE;
+        } else {
+            throw new TransactionAbortedException();
+        }
+        Object table = LockManager.tableKey(pid.getTableId());
+        if (this.isReadLocked(tid, table, mode)) {
+            return;
+        }
+        LockManager.LockMode intention = mode == LockManager.LockMode.SHARED
+            ? LockManager.LockMode.INTENTION_SHARED
+            : LockManager.LockMode.INTENTION_EXCLUSIVE;
+        lockManager.acquire(tid, table, intention);
+        lockManager.acquire(tid, pid, recordLocking ? intention : mode);
+        this.escalateToTable(tid, table);
+    }
+
+    /**
+     * Reads are covered by a shared (S, SIX or X) lock on the table or page
+     * above. Writes always lock the page or record too, even under an
+     * exclusive table lock: that is how commit and eviction find the pages
+     * a transaction changed.
+     *
+     * @return true if mode needs no lock below key
+     */
+    private boolean isReadLocked(TransactionId tid, Object key, LockManager.LockMode mode) {
+        if (mode != LockManager.LockMode.SHARED) {
+            return false;
+        }
+        LockManager.LockMode held = lockManager.getLockMode(tid, key);
+        return held != null && held.covers(LockManager.LockMode.SHARED);
+    }
+
+    /**
+     * Locks a whole table for a transaction: shared to read all of it
+     * (e.g. for a full scan), exclusive to change it. Its pages are then
+     * read without page locks, which saves taking one per page of a big
+     * table. Page locks it held for reading before are released. Does
+     * nothing for snapshot and optimistic transactions. May block if the
+     * lock can't be acquired.
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        if (isSnapshot(tid) || isOptimistic(tid)) {
+            return;
+        }
+        Object table = LockManager.tableKey(tableId);
+        if (perm == Permissions.READ_ONLY) {
+            lockManager.acquire(tid, table, LockManager.LockMode.SHARED);
+        } else if (perm == Permissions.READ_WRITE) {
+            lockManager.acquire(tid, table, LockManager.LockMode.EXCLUSIVE);
+        } else {
+            throw new TransactionAbortedException();
+        }
+        this.releaseReadLocksInside(tid, table);
+    }
+
+    /** @return true if the transaction holds a lock on the whole table that
+        lets it read every page without page locks (S, SIX or X) */
+    public boolean holdsTableReadLock(TransactionId tid, int tableId) {
+        return this.isReadLocked(tid, LockManager.tableKey(tableId),
+                LockManager.LockMode.SHARED);
+    }
+
+    /**
+     * Locks a page exclusively, and its table for writing, whatever the
+     * locking mode: for a page about to be appended to a file, which nobody
+     * else may get at first, and for the pages an optimistic transaction
+     * installs.
+     */
+    void lockPageExclusive(TransactionId tid, PageId pid) throws TransactionAbortedException {
+        lockManager.acquire(tid, LockManager.tableKey(pid.getTableId()),
+                LockManager.LockMode.INTENTION_EXCLUSIVE);
+        lockManager.acquire(tid, pid, LockManager.LockMode.EXCLUSIVE);
+    }
+
+    /** Trades the transaction's shared page locks in the table for a
+        shared table lock, if it has too many and can get that without
+        waiting. */
+    private void escalateToTable(TransactionId tid, Object table) {
+        if (lockManager.countLocksInside(tid, table) <= tableLockEscalation
+                || this.isReadLocked(tid, table, LockManager.LockMode.SHARED)) {
+            return;
+        }
+        // IS becomes S, and IX becomes SIX
+        if (lockManager.tryAcquire(tid, table, LockManager.LockMode.SHARED)) {
+            this.releaseReadLocksInside(tid, table);
+        }
+    }
+
+    /**
+     * Releases the page locks, and the record locks in them, that the
+     * transaction only reads under and that its table lock now covers.
+     * Pages it may have written stay locked.
+     */
+    private void releaseReadLocksInside(TransactionId tid, Object table) {
+        for (Object key : lockManager.getLocksInside(tid, table)) {
+            LockManager.LockMode mode = lockManager.getLockMode(tid, key);
+            if (mode == LockManager.LockMode.SHARED
+                    || mode == LockManager.LockMode.INTENTION_SHARED) {
+                for (Object record : lockManager.getLocksInside(tid, key)) {
+                    lockManager.release(tid, record);
+                }
+                lockManager.release(tid, key);
+            }
+        }
+    }
+
+    /**
+     * Locks a record in record locking mode: shared to read it, exclusive
+     * to change it, along with intention locks on its table and page. Like
+     * a page lock, it is held until the transaction completes. Does nothing
+     * in page locking mode, or for snapshot and optimistic transactions,
+     * which lock no records. May block if the lock can't be acquired.
+     * <p>
+     * Once the transaction holds more record locks on the page than the
+     * escalation threshold, they are traded for a lock on the whole page,
+     * if that can be granted right away.
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        if (!recordLocking || isSnapshot(tid) || isOptimistic(tid)) {
+            return;
+        }
+        PageId pid = rid.getPageId();
+        this.getPageLock(tid, pid, perm);
+        LockManager.LockMode mode = perm == Permissions.READ_ONLY
+            ? LockManager.LockMode.SHARED : LockManager.LockMode.EXCLUSIVE;
+        if (this.isReadLocked(tid, LockManager.tableKey(pid.getTableId()), mode)) {
+            return;
+        }
+        LockManager.LockMode pageMode = lockManager.getLockMode(tid, pid);
+        if (pageMode != null && pageMode.covers(mode)) {
+            return; // escalated already
+        }
+        lockManager.acquire(tid, rid, mode);
+        this.escalateToPage(tid, pid);
+    }
+
+    /**
+     * Locks a record the transaction just inserted, in the slot it found
+     * free, without waiting. The caller holds the page's intention lock.
+     *
+     * @return false if another transaction has the record locked
+     */
+    boolean tryLockNewRecord(TransactionId tid, RecordId rid) {
+        if (!recordLocking || isSnapshot(tid) || isOptimistic(tid)) {
+            return true;
+        }
+        LockManager.LockMode pageMode = lockManager.getLockMode(tid, rid.getPageId());
+        if (pageMode != null && pageMode.covers(LockManager.LockMode.EXCLUSIVE)) {
+            return true;
+        }
+        if (!lockManager.tryAcquire(tid, rid, LockManager.LockMode.EXCLUSIVE)) {
+            return false;
+        }
+        this.escalateToPage(tid, rid.getPageId());
+        return true;
+    }
+
+    /** Trades the transaction's record locks on the page for a page lock,
+        if it has too many and the page lock is free. */
+    private void escalateToPage(TransactionId tid, PageId pid) {
+        if (lockManager.countLocksInside(tid, pid) <= recordLockEscalation) {
+            return;
+        }
+        Set<Object> records = lockManager.getLocksInside(tid, pid);
+        LockManager.LockMode mode = LockManager.LockMode.SHARED;
+        for (Object rid : records) {
+            if (lockManager.getLockMode(tid, rid) == LockManager.LockMode.EXCLUSIVE) {
+                mode = LockManager.LockMode.EXCLUSIVE;
+                break;
+            }
+        }
+        if (!lockManager.tryAcquire(tid, pid, mode)) {
+            return; // others use the page: keep locking records
+        }
+        for (Object rid : records) {
+            lockManager.release(tid, rid);
+        }
+    }
+
+    /**
+     * Returns the pool's frame for the page, reading it from disk on a
+     * miss, and pins it if asked to. Only the thread that installs the
+     * frame reads the page; other threads missing on it at the same time
+     * wait for that read.
+     */
+    private Frame lookUpFrame(PageId pid, boolean pin) throws DbException {
+        return this.lookUpFrame(pid, pin, null);
+    }
+
+    /**
+     * @param ring the ring a page read in on a miss goes into, or null.
+     *        A page of another ring that is hit leaves its ring.
+     */
+    private Frame lookUpFrame(PageId pid, boolean pin, Ring ring) throws DbException {
+        while (true) {
+            Frame frame = this.pageTable.get(pid);
+            if (frame == null) {
+                Frame fresh = new Frame(pid);
+                fresh.ring = ring;
+                if (pin) {
+                    fresh.tryPin();
+                }
+                frame = this.pageTable.putIfAbsent(pid, fresh);
+                if (frame == null) {
+                    misses.increment();
+                    this.loadPage(fresh);
+                    return fresh;
+                }
+            }
+            if (frame.awaitPage() == null) {
+                // the read failed and the frame was withdrawn; try again
+                continue;
+            }
+            if (pin) {
+                if (!frame.tryPin()) {
+                    // lost a race with eviction or the page cleaner,
+                    // which may be writing the page; look again
+                    Thread.yield();
+                    continue;
+                }
+                if (this.pageTable.get(pid) != frame) {
+                    frame.unpin();
+                    continue;
+                }
+            }
+            hits.increment();
+            frame.lastAccess = System.nanoTime();
+            if (ring != null && frame.ring == ring) {
+                // the scan reading a page its read-ahead brought in: that
+                // is no sign the page is wanted
+                return frame;
+            }
+            if (frame.ring != null) {
+                // wanted by somebody else than the scan that read it in,
+                // so it is no longer the ring's to recycle
+                frame.ring = null;
+            }
+            // recency is best effort: under contention a hit is not worth
+            // queueing on the policy latch for
+            if (policyLatch.tryLock()) {
+                try {
+                    policy.pageAccessed(pid);
+                } finally {
+                    policyLatch.unlock();
+                }
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * Starts reading a page into the pool in the background, unless it is
+     * there already. No lock is taken and nothing is pinned: the page still
+     * has to be fetched with {@link #getPage} or {@link #pinPage}, which
+     * find it in the pool, or wait for the read if it is still going on.
+     * Making room for the page may evict others, like any read.
+     *
+     * @return true if a read was started
+     */
+    public boolean prefetchPage(PageId pid) {
+        return this.prefetchPage(pid, null);
+    }
+
+    /**
+     * Like {@link #prefetchPage(PageId)}, for a scan reading into a ring.
+     *
+     * @param ring the scan's ring, or null
+     */
+    public boolean prefetchPage(PageId pid, Ring ring) {
+        if (this.pageTable.containsKey(pid)) {
+            return false;
+        }
+        Frame fresh = new Frame(pid);
+        fresh.ring = ring;
+        if (this.pageTable.putIfAbsent(pid, fresh) != null) {
+            return false;
+        }
+        if (!prefetcher.offer(fresh)) {
+            this.withdrawFrame(fresh);
+            return false;
+        }
+        return true;
+    }
+
+    /** @return true if the page is in the pool, or being read into it */
+    public boolean isCached(PageId pid) {
+        return this.pageTable.containsKey(pid);
+    }
+
+    /** @return true if the page is being read into the pool */
+    public boolean isLoading(PageId pid) {
+        Frame frame = this.pageTable.get(pid);
+        return frame != null && !frame.isLoaded();
+    }
+
+    /** Reads the page of a frame queued by {@link #prefetchPage}. */
+    void loadPrefetched(Frame frame) {
+        prefetches.increment();
+        try {
+            this.loadPage(frame);
+        } catch (DbException e) {
+            // the frame was withdrawn; whoever wants the page reads it
+            Debug.log("prefetch of %s: %s", frame.pid, e);
+        }
+    }
+
+    /** Takes a frame whose page was never read out of the page table;
+        threads waiting for it look again. */
+    void withdrawFrame(Frame frame) {
+        this.pageTable.remove(frame.pid, frame);
+        frame.finishLoading(null);
+    }
+
+    /** Reads the page of a frame this thread just installed. */
+    private void loadPage(Frame frame) throws DbException {
+        PageId pid = frame.pid;
+        Page page = null;
+        boolean reserved = false;
+        try {
+            if (frame.ring != null) {
+                this.recycle(frame.ring);
+            }
+            this.reserveFrame(pid);
+            reserved = true;
+            // Page not in pool: Grab it from database.
+            page = Database.getCatalog()
+                    .getDatabaseFile(pid.getTableId()).readPage(pid);
+        } finally {
+            if (page == null) {
+                this.pageTable.remove(pid, frame);
+                if (reserved) {
+                    this.residentFrames.decrementAndGet();
+                }
+            }
+            frame.finishLoading(page);
+        }
+        policyLatch.lock();
+        try {
+            // the frame may have been discarded while it was loading
+            if (this.pageTable.get(pid) == frame) {
+                policy.pageInserted(pid);
+            }
+        } finally {
+            policyLatch.unlock();
         }
-        
-        public void readLock(TransactionId tid) throws IOException {
-    		// System.out.println("readLock: attempting to get lock for TID: "
-    		//				   + tid.myid);
-    		// System.out.println("PID: " + pid.getPageNumber());
-    		// System.out.println("");
-
-    		if (this.writeLocked) {
-        		// if we are the one with a write lock,
-        		// no need to do anything
-        		if (transactionToWLocks.containsKey(tid)) {
-            		if (transactionToWLocks.get(tid).contains(pid)) {
-            			// pass            		
-            		}
-            		else {
-                    	acquireLock(READ_LOCK, tid);
-            		}
-            	}
-        		else {
-                	acquireLock(READ_LOCK, tid);
-        		}
-        	}
-        	else if (this.readLocked) {
-        		// if we already have a read lock, we are fine
-        		if (transactionToRLocks.containsKey(tid)) {
-        			if (transactionToRLocks.get(tid).contains(pid)) {
-        				// pass, we are already locked
-        			}
-        			else {
-                    	acquireLock(READ_LOCK, tid);
-        			}
-        		}
-        		// if *a* transaction is currently trying to get
-        		// a read lock first, wait for it to finish
-        		// by trying to grab a write lock first instead
-        		else if (acquiringWriteLock = true) {
-//            		// System.out.println("readLock: stuck here");
-//
-//        			acquireLock(WRITE_LOCK, tid);  
-//            		this.readLockTransactions.add(tid);
-//        			this.readLocked = true;
-//        			writeUnlock(tid);
-        		}
-        		// else we can just join the masses of
-        		// read locked transactions
-        		else {
-        			// pass
-        		}
-        	}
-        	// neither read or write locked
-        	else {
-            	acquireLock(READ_LOCK, tid);
-        	}
-        	
-        	// got the lock
-    		// System.out.println("\nreadLock: got the lock for TID: " + tid.myid);
-    		// System.out.println("PID: " + pid.getPageNumber());
-    		// System.out.println("");
-        	this.readLockTransactions.add(tid);
-        	this.readLocked = true;
-        	
-//        	// wrapper after doing any locks
-//    		BufferPool.this.transitionLock.unlock();
+        Ring ring = frame.ring;
+        if (ring != null) {
+            ring.add(frame);
         }
-        
-        public void writeUnlock(TransactionId tid) {
-            // System.out.println("writeLock: unlocked by TID: " + tid.myid);
-    		// System.out.println("PID: " + pid.getPageNumber());
-    		// System.out.println("");
+    }
 
-        	this.writeLocked = false;
-        	
+    /**
+     * Makes room in a full ring by evicting its oldest page. Pages that
+     * left the ring are skipped, and pages that can't be evicted now (they
+     * are pinned, or hold uncommitted changes under NO STEAL) leave it and
+     * stay in the pool as any other page.
+     */
+    private void recycle(Ring ring) {
+        boolean stealing = this.steal && !this.recordLocking;
+        Frame frame;
+        while ((frame = ring.pollIfFull()) != null) {
+            if (frame.ring != ring || this.pageTable.get(frame.pid) != frame) {
+                continue;
+            }
+            if (!frame.claimForEviction()) {
+                frame.ring = null;
+                continue;
+            }
+            if (frame.page.isDirty() != null) {
+                if (!stealing && isUncommitted(frame.page)) {
+                    frame.releaseClaim();
+                    frame.ring = null;
+                    continue;
+                }
+                try {
+                    this.writeBack(frame);
+                } catch (IOException e) {
+                    frame.releaseClaim();
+                    frame.ring = null;
+                    continue;
+                }
+            }
+            if (this.removeFrame(frame)) {
+                return;
+            }
+            frame.releaseClaim();
         }
-        
-        public void readUnlock(TransactionId tid) {
-            // System.out.println("readLock: unlocked by TID: " + tid.myid);
-    		// System.out.println("PID: " + pid.getPageNumber());
-    		// System.out.println("");
-        	this.readLockTransactions.remove(tid);
-        	if (this.readLockTransactions.isEmpty()) {
-        		this.readLocked = false;
-        	}
+    }
+
+    /**
+     * Claims room for one more page, evicting pages until the pool is
+     * below its size.
+     *
+     * @param incoming the page that needs the frame, or null
+     * @throws DbException if no page can be evicted
+     */
+    private void reserveFrame(PageId incoming) throws DbException {
+        while (true) {
+            int n = residentFrames.get();
+            if (n < numPages) {
+                if (residentFrames.compareAndSet(n, n + 1)) {
+                    return;
+                }
+            } else {
+                if (!pageCleaner.isRunning()) {
+                    pageCleaner.start(pageCleanerThreads);
+                }
+                this.evictVictim(incoming);
+            }
         }
     }
-    
-    
-    
-    
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Evicts the page chosen by the eviction policy. Clean pages are
+     * offered to the policy first, as they need no write; the policy is
+     * told which pages are dirty, so it normally takes the oldest clean
+     * one without looking at others. Under NO STEAL
+     * a page can't be written out before the transaction that dirtied it
+     * commits, so next come pages dirtied by committed transactions.
+     * Under STEAL any unpinned page goes last, since an uncommitted page
+     * costs a log force.
      *
-     * @param numPages maximum number of pages in this buffer pool.
+     * @param incoming the page that needs the frame, or null
+     * @throws DbException if every page in the pool is pinned, or dirty
+     *         under NO STEAL
      */
-    public BufferPool(int numPages) {
-        this.numPages = numPages;
-        this.pageHash = new ConcurrentHashMap<>();
-        this.lruQueue = new PriorityQueue<>(numPages);
-        this.pageToLock = new HashMap<>();
-        this.transactionToPage = new HashMap<>();
-        this.transitionLock = new ReentrantLock();
-        this.transactionToWLocks = new HashMap<>(); 
-        this.transactionToRLocks = new HashMap<>();
+    private void evictVictim(PageId incoming) throws DbException {
+        while (true) {
+            boolean stealing = this.steal && !this.recordLocking;
+            PageId victim;
+            policyLatch.lock();
+            try {
+                victim = policy.chooseVictim(incoming, cleanFrames);
+                if (victim == null) {
+                    victim = policy.chooseVictim(incoming, committedFrames);
+                }
+                if (victim == null && stealing) {
+                    victim = policy.chooseVictim(incoming, unpinnedFrames);
+                }
+            } finally {
+                policyLatch.unlock();
+            }
+            if (victim == null) {
+                throw new DbException("Cannot evict a page!");
+            }
+            Frame frame = pageTable.get(victim);
+            // recheck: the page may have been dirtied, pinned or evicted
+            // by another thread since the policy looked at it
+            if (frame == null || !frame.claimForEviction()) {
+                Thread.yield();
+                continue;
+            }
+            if (frame.page.isDirty() != null) {
+                if (!stealing && isUncommitted(frame.page)) {
+                    // dirtied just before we claimed it: give it back
+                    frame.releaseClaim();
+                    continue;
+                }
+                // the cleaner is behind: have it catch up while we write
+                pageCleaner.wakeUp();
+                try {
+                    this.writeBack(frame);
+                } catch (IOException e) {
+                    frame.releaseClaim();
+                    throw new DbException("could not write page " + victim
+                            + ": " + e.getMessage());
+                }
+            }
+            if (this.removeFrame(frame)) {
+                return;
+            }
+            frame.releaseClaim();
+        }
     }
-    
-    // so that only one thread can ever be trying to lock at one
-    // time.
-    public void lockWrapper(int lockType, PageLock lock, TransactionId tid) 
-    		throws IOException 
-    		 {
-    	synchronized(this) {
-
-    		if (lockType == READ_LOCK) {
-    			lock.readLock(tid);
-    		}
-    		else if (lockType == WRITE_LOCK) {
-//    			// System.out.println("Here is the tid: " + tid.myid);
-    			lock.writeLock(tid);
-    		}
-    		return;
-    	}
+
+    /**
+     * Writes out the dirty page of a frame. If the page is uncommitted
+     * (it is being stolen), write-ahead logging applies: the update
+     * record, with the changes since the before image the transaction
+     * started from, is forced to the log before the page reaches disk. A
+     * committed page was logged when its transaction committed.
+     * <p>
+     * With record locking, only the before image is written, and the page
+     * is clean afterwards only if no uncommitted changes were left out.
+     */
+    private void writeBack(Frame frame) throws IOException {
+        this.writeBack(frame, false);
     }
-    
-    public HashMap<PageId, PageLock> getPageToLock() {
-    	return pageToLock;
+
+    /**
+     * @param logged true if the page's changes are already forced to the
+     *               log
+     */
+    private void writeBack(Frame frame, boolean logged) throws IOException {
+        synchronized (frame) {
+            long[] forceLsn = {-1};
+            Page image = this.imageToWrite(frame, logged, forceLsn);
+            if (image == null) {
+                return;
+            }
+            this.forceLog(forceLsn[0]);
+            Database.getCatalog().getDatabaseFile(frame.pid.getTableId())
+                .writePage(image);
+            this.markWritten(frame, image);
+        }
     }
-    
-    public HashMap<TransactionId, Set<PageId>> getTransactionToPage() {
-    	return transactionToPage;
+
+    // most frames written back together, holding all their monitors
+    private static final int WRITE_BATCH = 64;
+
+    /**
+     * Like {@link #writeBack(Frame, boolean)} for many frames, which are
+     * written in order of table and page number: each file gets the pages
+     * in batches (see {@link DbFile#writePages}), so that runs of
+     * consecutive pages become single writes, and the log is forced once a
+     * batch. A batch is written holding the monitors of all its frames,
+     * taken in that same order.
+     *
+     * @param sync whether to force each file to disk once all its pages
+     *             are written. Pages written without it are clean but
+     *             maybe not on disk yet, which is why a checkpoint forces
+     *             the files before its dirty page table counts.
+     * @see LogFile#logCheckpoint
+     */
+    private void writeBackAll(Collection<Frame> frames, boolean logged, boolean sync)
+        throws IOException {
+        ArrayList<Frame> sorted = new ArrayList<Frame>(frames);
+        sorted.sort(new Comparator<Frame>() {
+            public int compare(Frame a, Frame b) {
+                int c = Integer.compare(a.pid.getTableId(), b.pid.getTableId());
+                return c != 0 ? c : Integer.compare(a.pid.getPageNumber(), b.pid.getPageNumber());
+            }
+        });
+        int from = 0;
+        while (from < sorted.size()) {
+            int tableId = sorted.get(from).pid.getTableId();
+            int to = from;
+            while (to < sorted.size() && sorted.get(to).pid.getTableId() == tableId) {
+                to++;
+            }
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            for (int i = from; i < to; i += WRITE_BATCH) {
+                List<Frame> batch = sorted.subList(i, Math.min(to, i + WRITE_BATCH));
+                this.writeBatch(file, batch, 0, logged);
+            }
+            if (sync) {
+                file.force();
+            }
+            from = to;
+        }
     }
 
-    private boolean replaceExistingPage() {
-        return (this.pageHash.size() == this.numPages);
+    /** Takes the monitors of the frames of a batch from the given one on,
+        and writes the batch once it holds them all. */
+    private void writeBatch(DbFile file, List<Frame> batch, int locked, boolean logged)
+        throws IOException {
+        if (locked < batch.size()) {
+            synchronized (batch.get(locked)) {
+                this.writeBatch(file, batch, locked + 1, logged);
+            }
+            return;
+        }
+        long[] forceLsn = {-1};
+        ArrayList<Frame> written = new ArrayList<Frame>();
+        ArrayList<Page> images = new ArrayList<Page>();
+        for (Frame frame : batch) {
+            Page image = this.imageToWrite(frame, logged, forceLsn);
+            if (image != null) {
+                written.add(frame);
+                images.add(image);
+            }
+        }
+        if (images.isEmpty()) {
+            return;
+        }
+        this.forceLog(forceLsn[0]);
+        file.writePages(images);
+        for (int i = 0; i < written.size(); i++) {
+            this.markWritten(written.get(i), images.get(i));
+        }
     }
-    
-    public static int getPageSize() {
-      return pageSize;
+
+    /**
+     * Works out what to write for the dirty page of a frame, whose monitor
+     * the caller holds. A stolen page has its update record logged; the log
+     * must be forced up to the LSN left in forceLsn before the page is
+     * written (Long.MAX_VALUE for all of it).
+     *
+     * @return the page to write, or null if the page is clean
+     */
+    private Page imageToWrite(Frame frame, boolean logged, long[] forceLsn)
+        throws IOException {
+        Page page = frame.page;
+        TransactionId dirtier = page.isDirty();
+        if (dirtier == null) {
+            return null;
+        }
+        if (recordLocking) {
+            if (!logged && isUncommitted(page)) {
+                // a commit may have put changes in the before image
+                // whose update records are not forced yet
+                forceLsn[0] = Long.MAX_VALUE;
+            }
+            return page.getBeforeImage();
+        }
+        if (!logged && isUncommitted(page)) {
+            // The before image is taken holding the log's monitor. A commit
+            // brings it up to date before logging its COMMIT record, so a
+            // steal that comes after the COMMIT finds nothing to log;
+            // logging the transaction again would make recovery take it
+            // for a loser.
+            LogFile log = Database.getLogFile();
+            synchronized (log) {
+                long lsn = log.logWrite(dirtier, page.getBeforeImage(), page);
+                if (lsn > 0) {
+                    // snapshots still read the committed content
+                    versions.pageStolen(dirtier, page);
+                    forceLsn[0] = Math.max(forceLsn[0], lsn);
+                }
+            }
+        }
+        return page;
     }
-    
-    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
-    public static void setPageSize(int pageSize) {
-    	BufferPool.pageSize = pageSize;
+
+    private void forceLog(long lsn) throws IOException {
+        if (lsn == Long.MAX_VALUE) {
+            Database.getLogFile().force();
+        } else if (lsn >= 0) {
+            Database.getLogFile().force(lsn);
+        }
     }
-    
-    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
-    public static void resetPageSize() { BufferPool.pageSize = DEFAULT_PAGE_SIZE; }
 
-    public static Page pidToPage (PageId pid) {
-    	int tableID = pid.getTableId();
-    	DbFile file = Database.getCatalog().getDatabaseFile(tableID);
-    	Page thePage = file.readPage(pid);
-    	return thePage;
+    /** Marks the page of a frame clean once the given image of it is
+        written, and tells the eviction policy. The caller holds the
+        frame's monitor. */
+    private void markWritten(Frame frame, Page image) {
+        Page page = frame.page;
+        if (recordLocking) {
+            // changes are made holding the page's monitor, so none can
+            // slip in between the comparison and marking it clean
+            synchronized (page) {
+                if (!Arrays.equals(image.getPageData(), page.getPageData())) {
+                    return;
+                }
+                page.markDirty(false, null);
+                frame.recLsn = -1;
+            }
+        } else {
+            page.markDirty(false, null);
+            frame.recLsn = -1;
+        }
+        policyLatch.lock();
+        try {
+            // a page dirtied again since is reported by cachePage
+            if (this.pageTable.get(frame.pid) == frame
+                && frame.page.isDirty() == null) {
+                policy.pageCleaned(frame.pid);
+            }
+        } finally {
+            policyLatch.unlock();
+        }
     }
+
     /**
-     * Retrieve the specified page with the associated permissions.
-     * Will acquire a lock and may block if that lock is held by another
-     * transaction.
-     * <p>
-     * The retrieved page should be looked up in the buffer pool.  If it
-     * is present, it should be returned.  If it is not present, it should
-     * be added to the buffer pool and returned.  If there is insufficient
-     * space in the buffer pool, a page should be evicted and the new page
-     * should be added in its place.
+     * One round of page cleaner work. Writes out the pages a checkpoint
+     * asked for (see {@link #flushForCheckpoint}), and if too many pages
+     * are dirty, the coldest writable dirty pages of the given shard of
+     * the pool until the shard has done its part in getting down to the
+     * low watermark. Pages are claimed while they are written, so nobody
+     * can pin and modify them halfway through the write. They are written
+     * in order of table and page number (see {@link #writeBackAll}).
      *
-     * @param tid the ID of the transaction requesting the page
-     * @param pid the ID of the requested page
-     * @param perm the requested permissions on the page
-     * @throws IOException 
-     * @throws Exception 
+     * @return the number of pages written
      */
-    // NOTE! Might need to add in some logic to prevent threads from getting 
-    // the same lock twice? Dunno how it will handle this
-    public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
-        throws TransactionAbortedException, DbException, IOException {
-        if (perm != Permissions.READ_ONLY && 
-            perm != Permissions.READ_WRITE) {
-            throw new TransactionAbortedException();
+    int cleanDirtyPages(int shard, int shards) throws IOException {
+        int dirty = 0;
+        ArrayList<Frame> candidates = new ArrayList<Frame>();
+        // with record locking, the committed content of any page can be
+        // written
+        boolean stealing = this.steal || this.recordLocking;
+        long checkpointLsn = this.checkpointLsn;
+        boolean checkpointDue = false;
+        for (Frame frame : this.pageTable.values()) {
+            Page page = frame.page;
+            if (page == null || page.isDirty() == null) {
+                continue;
+            }
+            dirty++;
+            if (Math.floorMod(frame.pid.hashCode(), shards) == shard
+                && !frame.isPinned() && (stealing || !isUncommitted(page))) {
+                candidates.add(frame);
+                checkpointDue |= isCheckpointDue(frame, checkpointLsn);
+            }
+        }
+        boolean overHigh = dirty > dirtyHighWatermark * numPages;
+        if (!overHigh && !checkpointDue) {
+            return 0;
+        }
+        int toWrite = overHigh
+            ? (int) Math.ceil((dirty - dirtyLowWatermark * numPages) / shards)
+            : 0;
+        candidates.sort(new Comparator<Frame>() {
+            public int compare(Frame a, Frame b) {
+                return Long.compare(a.lastAccess, b.lastAccess);
+            }
+        });
+        ArrayList<Frame> claimed = new ArrayList<Frame>();
+        for (Frame frame : candidates) {
+            boolean due = isCheckpointDue(frame, checkpointLsn);
+            if (!due && claimed.size() >= toWrite) {
+                continue;
+            }
+            if (!frame.claimForEviction()) {
+                continue;
+            }
+            if (this.pageTable.get(frame.pid) == frame
+                && frame.page.isDirty() != null
+                && (stealing || !isUncommitted(frame.page))) {
+                claimed.add(frame);
+            } else {
+                frame.releaseClaim();
+            }
+        }
+        try {
+            // written together, so that neighbouring pages go out in one
+            // write. No sync: the next checkpoint forces the files before
+            // the log that still covers these pages can be dropped.
+            this.writeBackAll(claimed, false, false);
+        } finally {
+            for (Frame frame : claimed) {
+                frame.releaseClaim();
+            }
         }
-        // wrapper for locking, to prevent lock
-        // swooping
-    	this.transitionLock.lock();
+        return claimed.size();
+    }
 
-        
-        
-        // 1: Get the lock:
-        PageLock pageLock;     
-    	// if we have already locked this page at least once
-    	if (pageToLock.containsKey(pid)) {
-    		pageLock = pageToLock.get(pid);
-    	}
-    	else {
-    		pageLock = new PageLock(pid);
-    		pageToLock.put(pid, pageLock);
-    	}
-        
-    	
-    	// 2: Lock the lock: 
-    	// if we only need read permission, get read lock
-    	// else, get write lock
-        if (perm == Permissions.READ_ONLY) {
+    private static boolean isCheckpointDue(Frame frame, long checkpointLsn) {
+        long recLsn = frame.recLsn;
+        return recLsn >= 0 && recLsn < checkpointLsn;
+    }
 
-    		lockWrapper(READ_LOCK, pageLock, tid);        	
-        }
-        // Write Lock needed
-        else {
-        	// checks if page is already write locked
-        	// for this transaction
-        	if (transactionToPage.containsKey(tid)) {
-        		if (transactionToPage.get(tid).contains(pid)) {
-        			if (pageToLock.get(pid).isWriteLocked()) {
-        				// pass
-        			}
-        			else if (pageToLock.get(pid).isReadLocked()) {
-        				// upgrade
-                    	pageLock.readUnlock(tid);
-                    	// System.out.println("Grabbing write lock");
-                    	// pageLock.writeLock();
-        				lockWrapper(WRITE_LOCK, pageLock, tid);
-                    	// System.out.println("Got write lock");
-                    //	pageLock.readLock();
-        			}
-        		}
-        		else {
-        			// // System.out.println("transaction in hash map,
-        			// but never locked this page");
-        			lockWrapper(WRITE_LOCK, pageLock, tid);
-        		}
-        	}
-        	else {
-        		lockWrapper(WRITE_LOCK, pageLock, tid);
-        	}
+    /**
+     * The dirty page table for a checkpoint: the recLSN of every page
+     * whose logged changes are not all on disk yet.
+     */
+    Map<PageId, Long> getDirtyPageTable() {
+        HashMap<PageId, Long> table = new HashMap<PageId, Long>();
+        for (Frame frame : this.pageTable.values()) {
+            long recLsn = frame.recLsn;
+            if (recLsn >= 0) {
+                table.put(frame.pid, recLsn);
+            }
         }
+        return table;
+    }
 
-        
-        
-        
-        // 3: Add page to list of pages that are "locked"
-        
-        // If we have locked on this transaction before,
-        // we already have a hash map
-        if (transactionToPage.containsKey(tid)) {
-        	Set<PageId> currentPagesList = transactionToPage.get(tid); 
-        	currentPagesList.add(pid); //Add the new page, if it can be added.
-        	transactionToPage.put(tid, currentPagesList);
-        	
-        	// add to Read or Write transaction - lock hash map
-        	if (perm == Permissions.READ_ONLY) {
-        		if (transactionToRLocks.containsKey(tid)) {
-            		transactionToRLocks.get(tid).add(pid);    
-            		transactionToPage.get(tid).add(pid);
-        		}
-        		else {
-                	Set<PageId> currentRLocks = new HashSet<PageId>(); 
-                	currentRLocks.add(pid);
-        			transactionToRLocks.put(tid, currentRLocks);
-        		}
-        	}
-        	else if (perm == Permissions.READ_WRITE) {
-        		if (transactionToWLocks.containsKey(tid)) {
-            		transactionToWLocks.get(tid).add(pid); 
-            		transactionToPage.get(tid).add(pid);
-        		}
-        		else {
-                	Set<PageId> currentWLocks = new HashSet<PageId>(); 
-                	currentWLocks.add(pid);
-        			transactionToRLocks.put(tid, currentWLocks);
-        		}
-        	}
-        }
-        // else, we need to put in a new hash map for pages
-        else {
-        	Set<PageId> currentPagesList = new HashSet<PageId>();
-        	currentPagesList.add(pid); //Add the new page, if it can be added.
-        	transactionToPage.put(tid, currentPagesList);
-        	if (perm == Permissions.READ_ONLY) {
-        		transactionToRLocks.put(tid, currentPagesList);
-        	}
-        	else if (perm == Permissions.READ_WRITE) {
-        		transactionToWLocks.put(tid, currentPagesList);
-        	}
+    /**
+     * Has the page cleaner write out, in the background, every page whose
+     * recLSN is below the given checkpoint LSN. A page dirtied by a
+     * running transaction under NO STEAL is written once it commits. If
+     * the cleaner is turned off, the pages are written here instead.
+     */
+    void flushForCheckpoint(long lsn) throws IOException {
+        if (lsn > this.checkpointLsn) {
+            this.checkpointLsn = lsn;
         }
-        
-        // grab page from page hash
-        Page page = this.pageHash.get(pid.hashCode()); //their code
-
-        
-        int hashCode = pid.hashCode();
+        if (pageCleanerThreads == 0) {
+            this.cleanDirtyPages(0, 1);
+            return;
+        }
+        if (!pageCleaner.isRunning()) {
+            pageCleaner.start(pageCleanerThreads);
+        }
+        pageCleaner.wakeUp();
+    }
 
-        if (page == null) { // onwards is their code.
-//        	// System.out.println("page not in pool");
-        	
-            if (this.replaceExistingPage()) {
-                this.evictLRUPage();
-            }
-            // Page not in pool: Grab it from database.
-            page = Database.getCatalog()
-                    .getDatabaseFile(pid.getTableId()).readPage(pid);
-            this.pageHash.put(hashCode, page);
+    /**
+     * A dirty page holds uncommitted changes while the transaction that
+     * dirtied it still has it locked; under two-phase locking that lasts
+     * until the transaction completes. Pages left dirty by a commit (NO
+     * FORCE) or restored by an abort hold committed data. With record
+     * locking, any transaction holding the page for writing may have
+     * changed it.
+     */
+    private boolean isUncommitted(Page page) {
+        if (recordLocking) {
+            return page.isDirty() != null
+                && lockManager.isWriteLockedByOther(null, page.getId());
         }
-        this.putInQueue(hashCode);
-        // this.pageHash.put(hashCode, page);
-        // wrapper for locking, to prevent lock
-        // swooping
-    	this.transitionLock.unlock();
-        return page;
+        TransactionId dirtier = page.isDirty();
+        return dirtier != null && lockManager.holdsLock(dirtier, page.getId());
+    }
 
+    /** @return the cached page, or null if it is not (yet) in the pool */
+    private Page residentPage(PageId pid) {
+        Frame frame = this.pageTable.get(pid);
+        return frame == null ? null : frame.page;
     }
-   
 
-    void putInQueue(int hashCode) {
-        // puts element at end if accessed again
-        this.lruQueue.remove(hashCode);
-        this.lruQueue.add(hashCode);
+    /** @return the number of getPage requests served from the pool */
+    public long getHitCount() {
+        return hits.sum();
     }
 
-    //// so, cant use this one to take top to see if dirty or not. 
-    ////This function will actually flush the page. if you use it to access the top 
-    /*
-    private void evictLRUPage() { //This is function THEY gave us; only evicts LRU.
-        try {                       
-            int head = this.lruQueue.remove();
-            Page page = this.pageHash.get(head);
-            this.flushPage(page.getId());
-            this.pageHash.remove(head);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }*/
-    
-  //Our old evict LRU page is not good enough;
-	// we need to evict LRU page that is ALSO not dirty. 
-    private void evictLRUPage() throws DbException { 
-   // 	try {
-    		Page page = null;
-        	boolean found = false;
-        	int targetPageHash = 0;
-        	
-        	for (Integer item : lruQueue){   //Gets ths least recently used first. 
-        		if (!pageHash.containsKey(item)) {
-        			// System.out.println("evictLRUPage: pageHash doesn't contain int");
-        		}
-        		page = pageHash.get(item);
-        		TransactionId isDirty = page.isDirty();
-        		if (isDirty == null) { //is not dirty; done.
-        			targetPageHash = item;
-        			found = true;
-        			break;
-        		}
-        		//if not, keep looping.
-        	}
-        	// This is the page that is least recently used that is NOT dirty.
-        	// If not dirty, we dont need to flush.
-    		// Evict it, this means remove from BP, which means 
-        	// remove from LRUQueue and pageHash.
-        	if (found) { 
-//        		// System.out.println("evictLRUPage: found a non dirty page");
-        		//Remove from LRUQueue
-        		//Remove from pageHAsh
-        	//	discardPage(page.getId());
-        		//try {
-					this.discardPage(page.getId());
-				//} catch (IOException e) {
-					// TODO Auto-generated catch block
-					//e.printStackTrace();
-				//}
-        		this.pageHash.remove(targetPageHash);        	
-        		this.lruQueue.remove(targetPageHash);
-        	}
-        	else {
-        		//None found.
-        		throw new DbException("Cannot evict a page!");
-        		//return;
-        	}
-    	}
-//    	catch (Exception e){
-//    		e.printStackTrace();
-//    	}
-    
+    /** @return the number of getPage requests that had to read from disk */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /** @return the number of pages read ahead of scans */
+    public long getPrefetchCount() {
+        return prefetches.sum();
+    }
+
+    /** @return the fraction of getPage requests served from the pool */
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /** Zeroes the hit and miss counters, e.g. after warming up the pool. */
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        prefetches.reset();
+    }
 
     /**
      * Releases the lock on a page.
@@ -583,63 +1568,23 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public  void releasePage(TransactionId tid, PageId pid) {
-        
-    	// 1: Unlock the lock itself. 
-    	if (pageToLock.containsKey(pid)) {
-    		PageLock pageLock = pageToLock.get(pid);
-        	
-    		// might be a problem with unlocking both of these?
-        	// depending on if we can unlock if it's already unlocked...
-    		// pageLock.readUnlock();
-    		
-
-    		// see if any other transaction has a read lock on the page
-    		boolean canUnlock = true;
-    		for (TransactionId someTid : transactionToRLocks.keySet()) {
-    			if (someTid.myid != tid.myid && transactionToRLocks.get(someTid).contains(pid))
-    			{
-    				canUnlock = false;
-    			}
-    		}
-    		if (canUnlock) {
-        		pageLock.readUnlock(tid);	
-        		pageLock.writeUnlock(tid);	
-    		}
-        	// 2: Then remove page as page no longer locked.
-    		if (transactionToRLocks.containsKey(tid)) {
-    			// remove from r lock tracker
-            	transactionToRLocks.get(tid).remove(pid);
-            	// check to see if can remove from total tracker
-        		if (transactionToWLocks.containsKey(tid)) {
-        			if (!transactionToWLocks.get(tid).contains(pid)) {
-                    	transactionToPage.get(tid).remove(pid);
-        			}
-        		}
-            	
-    		}
-    		if (transactionToWLocks.containsKey(tid)) {
-            	transactionToWLocks.get(tid).remove(pid);
-            	// check to see if can remove from total tracker
-        		if (transactionToRLocks.containsKey(tid)) {
-        			if (!transactionToRLocks.get(tid).contains(pid)) {
-                    	transactionToPage.get(tid).remove(pid);
-        			}
-        		}
-    		}
-
-    	}
-    	else {
-    		throw new IllegalArgumentException("releasePage: page not" +
-    										   " in lock manager" +
-    										   " (never locked even once?)");
-    	}	
+        Map<PageId,Page> workspace = workspaces.get(tid);
+        if (workspace != null) {
+            // like a lock, a page read but not changed stops counting
+            // against the transaction at commit
+            Page page = workspace.get(pid);
+            if (page != null && page.isDirty() == null) {
+                workspace.remove(pid);
+                versions.forgetRead(tid, pid);
+            }
+        }
+        lockManager.release(tid, pid);
     }
 
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        return (transactionToRLocks.get(tid).contains(p) || 
-        		transactionToWLocks.get(tid).contains(p));
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
@@ -647,89 +1592,273 @@ public class BufferPool {
      *
      * @param tid the ID of the transaction requesting the unlock
      * @throws IOException 
+     * @throws TransactionAbortedException if the transaction is optimistic
+     *         and fails validation
      */
-    public void transactionComplete(TransactionId tid) throws IOException  {
-    	// System.out.println("\n\n000000000000000000000000000000000000000\n");
-    	// System.out.println("transactionComplete is called - commit\n");
-    	
-//    	When you commit, you should flush dirty pages
-//  	  associated to the transaction to disk. When you abort, you should revert
-//  	  any changes made by the transaction by restoring the page to its on-disk
-//  	  state.
-//
-//  	Whether the transaction commits or aborts, you should also release any state the
-//  	  BufferPool keeps regarding
-//  	  the transaction, including releasing any locks that the transaction held.
-    	
-    	
-        //This function always commits. 
-    	
-    	//Need to flush the dirty pages on BP to disk.
-    	flushPages(tid); //Each page gets flushed separately.
-    	
-    	// Release locks:
-    	HashSet<PageId> listOfPages = new HashSet<PageId>(transactionToPage.get(tid));
-    	
-
-    	for (PageId pageId : listOfPages) {
-    		releasePage(tid, pageId);
-    		// discardPage(pageId);
-    	}
-    	// System.out.println("000000000000000000000000000000000000000\n\n\n");
-
+    public void transactionComplete(TransactionId tid)
+        throws IOException, TransactionAbortedException {
+        transactionComplete(tid, true);
     }
 
-
-    
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
      *
+     * <p>
+     * An optimistic transaction is validated first: it locks the pages it
+     * changed, and checks that none of the pages it read was changed by a
+     * commit since, or is locked for writing by another transaction. If
+     * so, it is aborted instead, and a TransactionAbortedException thrown;
+     * otherwise its copies of the pages replace the ones in the pool and it
+     * commits like any other.
+     *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      * @throws IOException 
+     * @throws TransactionAbortedException if the transaction is optimistic
+     *         and fails validation
      */
-    public void transactionComplete(TransactionId tid, boolean commit) throws IOException
-         {
-
-    //	this.transitionLock.lock();
-//    	When you commit, you should flush dirty pages
-//    	  associated to the transaction to disk. 
-    	
-    	// When you abort, you should revert
-//    	  any changes made by the transaction by restoring the page to its on-disk
-//    	  state.
-//
-//    	Whether the transaction commits or aborts, you should also release any state the
-//    	  BufferPool keeps regarding
-//    	  the transaction, including releasing any locks that the transaction held.
-    	
-    	
+    public void transactionComplete(TransactionId tid, boolean commit)
+        throws IOException, TransactionAbortedException {
+        if (tid.isReadOnly()) {
+            // it changed nothing, so there is nothing to log or write
+            lockManager.releaseAll(tid);
+            versions.end(tid);
+            return;
+        }
+        LogFile log = Database.getLogFile();
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        // with record locking, the slots of each page the transaction may
+        // have changed; null in page locking mode
+        Map<PageId,Set<Integer>> changed = null;
+        Map<PageId,Page> workspace = workspaces.remove(tid);
+        if (workspace != null) {
+            for (Page page : workspace.values()) {
+                if (tid.equals(page.isDirty())) {
+                    dirtied.add(page);
+                }
+            }
+            if (commit) {
+                this.validateAndInstall(tid, dirtied);
+            } else {
+                // its changes never left the workspace
+                dirtied.clear();
+            }
+            if (recordLocking) {
+                changed = this.changedSlots(tid);
+            }
+        } else if (recordLocking) {
+            changed = this.changedSlots(tid);
+            for (PageId pageId : changed.keySet()) {
+                Page page = residentPage(pageId);
+                if (page != null && page.isDirty() != null) {
+                    dirtied.add(page);
+                }
+            }
+        } else {
+            for (PageId pageId : lockManager.getLockedPages(tid)) {
+                Page page = residentPage(pageId);
+                if (page != null && tid.equals(page.isDirty())) {
+                    dirtied.add(page);
+                }
+            }
+        }
     	if (commit) {
-    		transactionComplete(tid); //Pass to the commit function
-    		return;
+            if (noForce) {
+                // The log makes the commit durable: the update records and
+                // the commit record are forced together, and the pages
+                // stay dirty until eviction or a checkpoint writes them.
+                for (Page page : dirtied) {
+                    Frame frame = this.pageTable.get(page.getId());
+                    if (frame != null) {
+                        synchronized (frame) {
+                            if (frame.recLsn < 0) {
+                                frame.recLsn = log.currentLsn();
+                            }
+                        }
+                    }
+                    this.logCommitted(tid, page, changed);
+                }
+            } else if (log.isLive(tid)) {
+                // When you commit, you should flush dirty pages
+                // associated to the transaction to disk. Recovery redoes
+                // logged changes on top of what is on disk, so the pages
+                // are logged first, with a single force for all of them.
+                for (Page page : dirtied) {
+                    this.logCommitted(tid, page, changed);
+                }
+                log.force();
+                if (changed == null) {
+                    // no sync: the forced log makes the commit durable, and
+                    // the next checkpoint forces the files before it lets
+                    // that log go
+                    ArrayList<Frame> frames = new ArrayList<Frame>();
+                    for (Page page : dirtied) {
+                        Frame frame = this.pageTable.get(page.getId());
+                        if (frame != null) {
+                            frames.add(frame);
+                        }
+                    }
+                    this.writeBackAll(frames, true, false);
+                }
+            } else if (changed == null) {
+                flushPages(tid); //Each page gets flushed separately.
+            }
+            // the committed contents are what a later transaction must
+            // roll back to, and what snapshots read from now on
+            if (changed == null) {
+                versions.commit(tid, dirtied);
+            } else {
+                final Map<PageId,Set<Integer>> slots = changed;
+                versions.commit(tid, dirtied, page -> {
+                    HeapPage heapPage = (HeapPage) page;
+                    heapPage.setBeforeImage(heapPage.copySlotsInto(
+                            heapPage.getBeforeImage().getPageData(),
+                            slots.get(page.getId())));
+                });
+                if (!noForce) {
+                    // only the before image is written, so the pages are
+                    // written once it has the transaction's changes
+                    for (Page page : dirtied) {
+                        Frame frame = this.pageTable.get(page.getId());
+                        if (frame != null) {
+                            this.writeBack(frame, true);
+                        }
+                    }
+                }
+            }
+            if (noForce || log.isLive(tid)) {
+                log.logCommit(tid);
+            }
     	}
     	else {
-        	// System.out.println("1111111111111111111111111111111111111111111\n");
-        	// System.out.println("transactionComplete is called - abort\n");
-    		//Implement the do not commit part:
-    		
-    		// Restore page to on-disk state. 
-    		// (this is a discard, EITHER, you do this discard, OR the flush.)
-    		
-    		if (transactionToPage.containsKey(tid)) {
-        		HashSet<PageId> setOfPages = new HashSet<PageId>(transactionToPage.get(tid));
-            	for (PageId pageId : setOfPages) {
-            		discardPage(pageId); //Removes from: pageHash, lruQueue
-            		releasePage(tid, pageId); // release locks
-            	}
-    		}
-        	// System.out.println("1111111111111111111111111111111111111111111\n");
-
+            // Pages stolen from the transaction are on disk with its
+            // changes; the log has the images to put back.
+            if (log.isLive(tid)) {
+                log.rollback(tid);
+            }
+            versions.abort(tid);
+            // Revert the pages still in the pool to their before images,
+            // the last committed contents. Those may not be on disk yet
+            // under NO FORCE, so the restored pages stay dirty; they no
+            // longer count as uncommitted once the locks are released.
+            for (Page page : dirtied) {
+                if (residentPage(page.getId()) != page) {
+                    continue; // rolled back from the log
+                }
+                if (changed != null) {
+                    // others' changes on the page stay
+                    ((HeapPage) page).restoreSlots(changed.get(page.getId()));
+                } else {
+                    this.restoreBeforeImage(tid, page);
+                }
+            }
     	}
+        // Whether the transaction commits or aborts, release its locks.
+        lockManager.releaseAll(tid);
+        versions.end(tid);
+    }
 
-    //	this.transitionLock.unlock();
+    /**
+     * The slots a transaction may have changed, by page, in record locking
+     * mode: those of the records it holds exclusive locks on, and every
+     * slot of the pages it holds exclusive locks on.
+     */
+    private Map<PageId,Set<Integer>> changedSlots(TransactionId tid) {
+        HashMap<PageId,Set<Integer>> changed = new HashMap<PageId,Set<Integer>>();
+        for (Object key : lockManager.getLocks(tid)) {
+            if (lockManager.getLockMode(tid, key) != LockManager.LockMode.EXCLUSIVE) {
+                continue;
+            }
+            if (key instanceof RecordId) {
+                RecordId rid = (RecordId) key;
+                changed.computeIfAbsent(rid.getPageId(), k -> new HashSet<Integer>())
+                    .add(rid.getTupleNumber());
+            } else if (key instanceof PageId) {
+                Page page = residentPage((PageId) key);
+                if (page instanceof HeapPage) {
+                    Set<Integer> all = changed.computeIfAbsent((PageId) key,
+                            k -> new HashSet<Integer>());
+                    for (int slot = 0; slot < ((HeapPage) page).numSlots; slot++) {
+                        all.add(slot);
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Logs the changes a committing transaction made to a page: all of
+     * them in page locking mode (changed is null), or just those to the
+     * given slots. The update record is built from one copy of the before
+     * image, so it holds nothing another transaction committed meanwhile.
+     */
+    private void logCommitted(TransactionId tid, Page page,
+                              Map<PageId,Set<Integer>> changed) throws IOException {
+        LogFile log = Database.getLogFile();
+        if (changed == null) {
+            log.logWrite(tid, page.getBeforeImage(), page);
+            return;
+        }
+        HeapPage heapPage = (HeapPage) page;
+        HeapPage before = heapPage.getBeforeImage();
+        HeapPage after = new HeapPage(heapPage.getId(), heapPage.copySlotsInto(
+                before.getPageData(), changed.get(page.getId())));
+        log.logWrite(tid, before, after);
+    }
+
+    /** Puts the before image of a resident page in its place. */
+    private void restoreBeforeImage(TransactionId tid, Page page) throws IOException {
+        Page restored = page.getBeforeImage();
+        restored.markDirty(true, tid);
+        try {
+            this.cachePage(restored);
+        } catch (DbException e) {
+            // the page is resident, so nothing has to be evicted
+            throw new IOException(e.getMessage());
+        }
+    }
 
+    /**
+     * The validation and write phases of an optimistic transaction (see
+     * {@link #transactionComplete(TransactionId, boolean)}). The checks
+     * follow the write locks, so that of two transactions that each read
+     * what the other wrote, at least one sees the other's lock or commit.
+     * On failure the transaction is ended, holding nothing.
+     *
+     * @param written the transaction's changed copies, which are put in
+     *        the pool if it passes
+     */
+    private void validateAndInstall(TransactionId tid, List<Page> written)
+        throws IOException, TransactionAbortedException {
+        int installed = 0;
+        try {
+            for (Page page : written) {
+                this.lockPageExclusive(tid, page.getId());
+            }
+            for (PageId pid : versions.getReadSet(tid)) {
+                if (lockManager.isWriteLockedByOther(tid, pid)
+                        || versions.changedSinceRead(tid, pid)) {
+                    throw new TransactionAbortedException();
+                }
+            }
+            for (Page page : written) {
+                this.cachePage(page);
+                installed++;
+            }
+        } catch (TransactionAbortedException | DbException e) {
+            // the pool is full of pages it can't evict, or a conflict
+            for (Page page : written.subList(0, installed)) {
+                this.restoreBeforeImage(tid, page);
+            }
+            lockManager.releaseAll(tid);
+            versions.end(tid);
+            if (e instanceof TransactionAbortedException) {
+                throw (TransactionAbortedException) e;
+            }
+            throw new TransactionAbortedException();
+        }
     }
 
     /**
@@ -750,9 +1879,10 @@ public class BufferPool {
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException
         {
+        checkWritable(tid);
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> aLPage = file.insertTuple(tid, t);
-        this.putPagesInCache(aLPage);
+        this.putPagesInCache(tid, aLPage);
     }
 
     /**
@@ -770,30 +1900,116 @@ public class BufferPool {
      */
     public  void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
+        checkWritable(tid);
         int tableId = t.getRecordId().getPageId().getTableId();
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> aLPage = file.deleteTuple(tid, t);
-        this.putPagesInCache(aLPage);
+        this.putPagesInCache(tid, aLPage);
+    }
+
+    private static void checkWritable(TransactionId tid) throws DbException {
+        if (tid != null && tid.isReadOnly()) {
+            throw new DbException("read-only transaction " + tid.getId()
+                    + " can't write");
+        }
     }
 
-    private void putPagesInCache(ArrayList<Page> alPage) {
+    private void putPagesInCache(TransactionId tid, ArrayList<Page> alPage)
+        throws DbException {
+        Map<PageId,Page> workspace = workspaces.get(tid);
+        if (workspace != null) {
+            // an optimistic transaction's pages stay private until commit
+            for (Page page : alPage) {
+                workspace.put(page.getId(), page);
+            }
+            return;
+        }
         Iterator<Page> alPageIterator = alPage.iterator();
         while (alPageIterator.hasNext()) {
             Page page = alPageIterator.next();
-            this.pageHash.put(page.getId().hashCode(), page);
+            this.cachePage(page);
+        }
+    }
+
+    /**
+     * Adds a page that the transaction just appended to a file, and
+     * changed, to the pool; an optimistic transaction keeps it private
+     * until it commits.
+     */
+    void addNewPage(TransactionId tid, Page page) throws DbException {
+        page.markDirty(true, tid);
+        if (isOptimistic(tid)) {
+            workspaces.computeIfAbsent(tid, t -> new ConcurrentHashMap<PageId,Page>())
+                .put(page.getId(), page);
+            return;
+        }
+        this.cachePage(page);
+    }
+
+    /**
+     * Installs the page in the pool (replacing any cached version of it)
+     * and reports the access to the eviction policy, evicting another page
+     * if the pool is full.
+     */
+    void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        while (true) {
+            Frame frame = this.pageTable.get(pid);
+            if (frame != null) {
+                if (frame.awaitPage() == null) {
+                    continue;
+                }
+                frame.page = page;
+                policyLatch.lock();
+                try {
+                    policy.pageAccessed(pid);
+                    if (page.isDirty() != null) {
+                        policy.pageDirtied(pid);
+                    } else {
+                        policy.pageCleaned(pid);
+                    }
+                } finally {
+                    policyLatch.unlock();
+                }
+                return;
+            }
+            this.reserveFrame(pid);
+            frame = new Frame(page);
+            if (this.pageTable.putIfAbsent(pid, frame) != null) {
+                this.residentFrames.decrementAndGet();
+                continue;
+            }
+            policyLatch.lock();
+            try {
+                if (this.pageTable.get(pid) == frame) {
+                    policy.pageInserted(pid);
+                    if (page.isDirty() != null) {
+                        policy.pageDirtied(pid);
+                    }
+                }
+            } finally {
+                policyLatch.unlock();
+            }
+            return;
         }
     }
 
     /**
-     * Flush all dirty pages to disk.
+     * Flush all dirty pages to disk, in order of table and page number,
+     * then force each file written to disk once.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
-        for (Map.Entry<Integer, Page> entry : this.pageHash.entrySet()) {
-            PageId pid = entry.getValue().getId();
-            this.flushPage(pid);
+    public void flushAllPages() throws IOException {
+        ArrayList<Frame> frames = new ArrayList<Frame>();
+        for (Frame frame : this.pageTable.values()) {
+            Page page = frame.page;
+            if (page != null && page.isDirty() != null) {
+                frames.add(frame);
+            }
         }
+        // uncommitted changes are logged before they are written
+        this.writeBackAll(frames, false, true);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -804,10 +2020,30 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
-    	
-        this.pageHash.remove(pid.hashCode());
-        this.lruQueue.remove(pid.hashCode()); 
+    public void discardPage(PageId pid) {
+        Frame frame = this.pageTable.get(pid);
+        if (frame != null) {
+            this.removeFrame(frame);
+        }
+    }
+
+    /**
+     * Takes the frame out of the page table and the eviction policy.
+     *
+     * @return false if the frame was already gone
+     */
+    private boolean removeFrame(Frame frame) {
+        if (!this.pageTable.remove(frame.pid, frame)) {
+            return false;
+        }
+        this.residentFrames.decrementAndGet();
+        policyLatch.lock();
+        try {
+            policy.pageRemoved(frame.pid);
+        } finally {
+            policyLatch.unlock();
+        }
+        return true;
     }
 
     /**
@@ -816,49 +2052,31 @@ public class BufferPool {
      * @throws IOException 
      * @throws DbException 
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        Page page = this.pageHash.get(pid.hashCode());
+    private void flushPage(PageId pid) throws IOException {
+        Frame frame = this.pageTable.get(pid);
+        Page page = frame == null ? null : frame.page;
         if (page == null) {
-            throw new IOException("Can't evict a page!");
-        }
-        if (page.isDirty() != null) {
-//        	// System.out.println("Another page being flushed: PID: " + pid.getPageNumber());
-    		// System.out.println("The following page has been flushed: " + pid.getPageNumber());
-
-            page.markDirty(false, null);
-            int tableId = pid.getTableId();
-            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-            try {
-				file.writePage(page);
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+            // not resident, so nothing to write
+            return;
         }
+        // uncommitted changes are logged before they are written
+        this.writeBack(frame);
     }
 
-    /** Write all pages of the specified transaction to disk.
+    /** Write all pages of the specified transaction to disk, in order of
+     * table and page number, then force each file written to disk once.
      * @throws IOException 
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-
-        // some code goes here
-        // not necessary for lab1|lab2
-    	HashSet<PageId> listOfPages = new HashSet<PageId>(transactionToPage.get(tid));
-//    	if (transactionToRLocks.containsKey(tid)) {
-//        	HashSet<PageId> listOfPages1 = new HashSet<PageId>(transactionToRLocks.get(tid));
-//        	listOfPages.addAll(listOfPages1);
-//    	}
-//    	if (transactionToWLocks.containsKey(tid)) {
-//        	HashSet<PageId> listOfPages2 = new HashSet<PageId>(transactionToWLocks.get(tid));
-//        	listOfPages.addAll(listOfPages2);
-//    	}
-
-    	
-    	for (PageId pageId : listOfPages) {
-    		flushPage(pageId);
-    	}
-
+    public void flushPages(TransactionId tid) throws IOException {
+        ArrayList<Frame> frames = new ArrayList<Frame>();
+        for (PageId pageId : lockManager.getLockedPages(tid)) {
+            Frame frame = this.pageTable.get(pageId);
+            Page page = frame == null ? null : frame.page;
+            if (page != null && tid.equals(page.isDirty())) {
+                frames.add(frame);
+            }
+        }
+        this.writeBackAll(frames, false, true);
     }
 
     
@@ -867,7 +2085,7 @@ public class BufferPool {
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
-    private synchronized void evictPage(PageId pageId) throws IOException {
+    private void evictPage(PageId pageId) throws IOException {
         try {
             this.flushPage(pageId);
             this.discardPage(pageId);
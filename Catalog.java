@@ -170,6 +170,15 @@ public class Catalog {
     
     /** Delete all tables from the catalog */
     public void clear() {
+        for (UserTable table : nameHash.values()) {
+            if (table.getFile() instanceof HeapFile) {
+                try {
+                    ((HeapFile) table.getFile()).close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
         nameHash.clear();
         idHash.clear();
     }
@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit in a circular
+ * array of slots, each with a reference bit that is set on access. The
+ * clock hand sweeps the slots: a page whose bit is set gets its bit
+ * cleared and is passed over once, the first page found with a clear bit
+ * is the victim.
+ * <p>
+ * Hits only set a bit, so CLOCK is much cheaper than LRU on the hit path.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private PageId[] slots;
+    private boolean[] referenced;
+    private final HashMap<PageId, Integer> slotOf = new HashMap<PageId, Integer>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+    private int hand = 0;
+
+    public ClockEvictionPolicy(int numPages) {
+        int n = Math.max(numPages, 1);
+        slots = new PageId[n];
+        referenced = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            freeSlots.add(i);
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null) {
+            referenced[slot] = true;
+        }
+    }
+
+    public void pageInserted(PageId pid) {
+        if (slotOf.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        if (freeSlots.isEmpty()) {
+            // the pool is over its nominal size (e.g. every page was
+            // unevictable), so grow the clock rather than fail
+            int old = slots.length;
+            slots = Arrays.copyOf(slots, old * 2);
+            referenced = Arrays.copyOf(referenced, old * 2);
+            for (int i = old; i < old * 2; i++) {
+                freeSlots.add(i);
+            }
+        }
+        int slot = freeSlots.poll();
+        slots[slot] = pid;
+        // a new page starts unreferenced, so a page read once and never
+        // touched again is the first to go
+        referenced[slot] = false;
+        slotOf.put(pid, slot);
+    }
+
+    public void pageRemoved(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null) {
+            slots[slot] = null;
+            referenced[slot] = false;
+            freeSlots.add(slot);
+        }
+    }
+
+    public PageId chooseVictim(PageId incoming, Evictable filter) {
+        // two full sweeps: the first may only clear reference bits
+        for (int step = 0; step < 2 * slots.length; step++) {
+            int slot = hand;
+            hand = (hand + 1) % slots.length;
+            PageId pid = slots[slot];
+            if (pid == null) {
+                continue;
+            }
+            if (referenced[slot]) {
+                referenced[slot] = false;
+            } else if (filter.canEvict(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
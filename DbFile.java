@@ -27,6 +27,23 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push several pages to disk, like calling {@link #writePage} on each,
+     * but in order of page number, with runs of consecutive pages written
+     * together. The pages are not forced to disk; see {@link #force}.
+     *
+     * @param pages the pages to write, all of this file
+     * @throws IOException if a write fails
+     */
+    public void writePages(List<Page> pages) throws IOException;
+
+    /**
+     * Force the pages written so far to disk.
+     *
+     * @throws IOException if the sync fails
+     */
+    public void force() throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -1,9 +1,10 @@
 package simpledb;
 
-import java.lang.Exception; 
- 
-/** Exception that is thrown when a deadlock occurs. */
-public class DeadlockException extends Exception {
+/**
+ * Exception that is thrown when a deadlock occurs. It is raised in the
+ * transaction the lock manager picked as the victim, which should abort.
+ */
+public class DeadlockException extends TransactionAbortedException {
     private static final long serialVersionUID = 1L;
 
     public DeadlockException() {
@@ -0,0 +1,81 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which page the BufferPool gives up when it needs
+ * room for another one. The pool reports every hit, every page it brings
+ * in and every page that leaves, and asks the policy for a victim when it
+ * is full. It also reports when pages are dirtied and written, so that
+ * a policy can keep dirty pages apart and find a clean victim without
+ * walking past them.
+ * <p>
+ * Implementations need not be thread safe: the BufferPool serializes all
+ * calls into its policy.
+ *
+ * @see BufferPool
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Tells the policy whether a page may be evicted right now (for
+     * example, dirty pages can't be under NO STEAL).
+     */
+    public interface Evictable {
+        boolean canEvict(PageId pid);
+
+        /** @return false if only clean pages can be evicted, so the
+            policy need not look at pages it was told are dirty */
+        default boolean allowsDirty() {
+            return true;
+        }
+    }
+
+    /** A resident page was requested again. */
+    public void pageAccessed(PageId pid);
+
+    /** A page was read into the pool. */
+    public void pageInserted(PageId pid);
+
+    /** A page left the pool, either evicted or discarded. */
+    public void pageRemoved(PageId pid);
+
+    /** A resident page was dirtied. Only a hint: the pool checks pages
+        with the filter it passes to {@link #chooseVictim}. */
+    public default void pageDirtied(PageId pid) {
+    }
+
+    /** A dirty page was written out and is clean again. */
+    public default void pageCleaned(PageId pid) {
+    }
+
+    /**
+     * Chooses the next page to evict. The page is not removed from the
+     * policy's bookkeeping until the pool calls {@link #pageRemoved}.
+     *
+     * @param incoming the page the pool is making room for, or null if
+     *        unknown
+     * @param filter which resident pages may be evicted
+     * @return the victim, or null if no resident page can be evicted
+     */
+    public PageId chooseVictim(PageId incoming, Evictable filter);
+
+    /**
+     * Creates the policy with the given name ("lru", "clock", "2q" or
+     * "arc") for a pool of the given number of pages.
+     *
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static EvictionPolicy forName(String name, int numPages) {
+        switch (name.toLowerCase()) {
+        case "lru":
+            return new LruEvictionPolicy();
+        case "clock":
+            return new ClockEvictionPolicy(numPages);
+        case "2q":
+            return new TwoQueueEvictionPolicy(numPages);
+        case "arc":
+            return new ArcEvictionPolicy(numPages);
+        default:
+            throw new IllegalArgumentException("unknown eviction policy " + name);
+        }
+    }
+}
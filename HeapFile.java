@@ -1,10 +1,9 @@
 package simpledb;
 
-import javax.swing.tree.TreeNode;
- 
-import simpledb.BufferPool.PageLock;
- 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -21,6 +20,23 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class HeapFile implements DbFile {
 
+    // size of the chunks the file is mapped in, in memory mapped mode; a
+    // single mapping can't be over 2GB
+    private static final long MAP_CHUNK_BYTES = 64L * 1024 * 1024;
+
+    /** The file mapped into memory, in chunks of whole pages. */
+    private static class Mapping {
+        final MappedByteBuffer[] chunks;
+        final int chunkPages; // pages per chunk; the last may have fewer
+        final int pages; // pages covered
+
+        Mapping(MappedByteBuffer[] chunks, int chunkPages, int pages) {
+            this.chunks = chunks;
+            this.chunkPages = chunkPages;
+            this.pages = pages;
+        }
+    }
+
     private File f;
     private TupleDesc td;
     private int pageSize;
@@ -28,6 +44,21 @@ public class HeapFile implements DbFile {
     // Lock for adding new pages to a HeapFile
     private ReadWriteLock fileLock;
 
+    // kept open for all page reads and writes, which are positional and so
+    // can run concurrently; opened on first use, and again if it was closed
+    // (by close(), or by an interrupt during I/O)
+    private RandomAccessFile raf = null; // protected by this
+    private volatile FileChannel channel = null;
+
+    // whether pages are read from a memory mapping of the file
+    private volatile boolean memoryMapped;
+    // the current mapping, replaced (holding this) as the file grows
+    private volatile Mapping mapping = null;
+    // held while positioning the channel for a gathering write
+    private final Object gatherLock = new Object();
+    // whether pages were written since the file was last forced to disk
+    private volatile boolean unforced = false;
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -40,6 +71,27 @@ public class HeapFile implements DbFile {
         this.td = td;
         this.pageSize = BufferPool.getPageSize();
         this.fileLock = new ReentrantReadWriteLock();
+        this.memoryMapped = Boolean.getBoolean("simpledb.mmapHeapFiles");
+    }
+
+    /**
+     * Switches memory mapped mode on or off (it is on for every file if the
+     * simpledb.mmapHeapFiles property is true). In this mode the file is
+     * mapped into memory, and a page is read by copying it out of the
+     * mapping, so a page the OS has cached costs no read() call: meant for
+     * big tables that are mostly read. Writes still go through the file's
+     * channel, and the mapping sees them.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        if (!memoryMapped) {
+            this.mapping = null;
+        }
+    }
+
+    /** @return true if pages are read from a memory mapping */
+    public boolean isMemoryMapped() {
+        return this.memoryMapped;
     }
 
     /**
@@ -73,15 +125,110 @@ public class HeapFile implements DbFile {
         return this.td;
     }
 
+    /**
+     * @param create whether to create the file if it does not exist
+     * @return the open channel to the file, opening it if need be
+     */
+    private FileChannel channel(boolean create) throws IOException {
+        FileChannel ch = this.channel;
+        if (ch != null && ch.isOpen()) {
+            return ch;
+        }
+        synchronized (this) {
+            if (this.channel == null || !this.channel.isOpen()) {
+                if (!create && !this.f.exists()) {
+                    throw new FileNotFoundException(this.f.getPath());
+                }
+                if (this.raf != null) {
+                    this.raf.close();
+                }
+                RandomAccessFile file;
+                try {
+                    file = new RandomAccessFile(this.f, "rw");
+                } catch (FileNotFoundException e) {
+                    // not writable: reading is all that can be done
+                    file = new RandomAccessFile(this.f, "r");
+                }
+                this.raf = file;
+                this.channel = file.getChannel();
+            }
+            return this.channel;
+        }
+    }
+
+    /**
+     * Maps the file up to its current end. Chunks that were mapped whole
+     * already are kept; the rest are mapped again.
+     *
+     * @return the new mapping
+     */
+    private synchronized Mapping remap() throws IOException {
+        FileChannel ch = this.channel(false);
+        int pages = (int) (ch.size() / this.pageSize);
+        int chunkPages = (int) Math.max(1, MAP_CHUNK_BYTES / this.pageSize);
+        long chunkBytes = (long) chunkPages * this.pageSize;
+        Mapping old = this.mapping;
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(pages + chunkPages - 1) / chunkPages];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = i * chunkBytes;
+            long length = Math.min(chunkBytes, (long) pages * this.pageSize - start);
+            if (old != null && i < old.chunks.length && old.chunks[i].capacity() == length) {
+                chunks[i] = old.chunks[i];
+            } else {
+                chunks[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+        }
+        this.mapping = new Mapping(chunks, chunkPages, pages);
+        return this.mapping;
+    }
+
+    /** @return the data of a page copied out of the mapping, or null if
+        the page is past the end of the file */
+    private byte[] readMapped(int pageNumber) throws IOException {
+        Mapping m = this.mapping;
+        if (m == null || pageNumber >= m.pages) {
+            m = this.remap();
+            if (pageNumber >= m.pages) {
+                return null;
+            }
+        }
+        // a duplicate has its own position, so readers don't interfere
+        ByteBuffer chunk = m.chunks[pageNumber / m.chunkPages].duplicate();
+        chunk.position((pageNumber % m.chunkPages) * this.pageSize);
+        byte[] data = new byte[this.pageSize];
+        chunk.get(data);
+        return data;
+    }
+
+    /** Closes the file; it is opened again if the table is used after. */
+    public synchronized void close() throws IOException {
+        this.mapping = null;
+        if (this.raf != null) {
+            this.raf.close();
+            this.raf = null;
+            this.channel = null;
+        }
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) throws IllegalArgumentException {
         try {
-            RandomAccessFile raf = new RandomAccessFile(this.f, "r");
-            int pageNum = pid.getPageNumber();
-            raf.seek(pageNum * this.pageSize);
-            byte[] b= new byte[this.pageSize];
-            raf.read(b);
-            return new HeapPage((HeapPageId) pid, b);
+            if (this.memoryMapped) {
+                byte[] data = this.readMapped(pid.getPageNumber());
+                if (data != null) {
+                    return new HeapPage((HeapPageId) pid, data);
+                }
+            }
+            long offset = (long) pid.getPageNumber() * this.pageSize;
+            ByteBuffer b = ByteBuffer.allocate(this.pageSize);
+            FileChannel ch = this.channel(false);
+            while (b.hasRemaining()) {
+                // past the end of the file the page reads as zeros
+                if (ch.read(b, offset + b.position()) < 0) {
+                    break;
+                }
+            }
+            return new HeapPage((HeapPageId) pid, b.array());
         } catch (FileNotFoundException fnfe) {
             throw new IllegalArgumentException("FIle was not found");
         } catch (IOException ioe) {
@@ -93,18 +240,106 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         HeapPage heapPage = (HeapPage) page;
         try {
-            RandomAccessFile raf = new RandomAccessFile(this.f, "rw");
-            int pageNum = heapPage.getId().getPageNumber();
-            raf.seek(pageNum * this.pageSize);
-            byte[] b = page.getPageData();
-            assert b.length == BufferPool.getPageSize();
-            raf.write(b);
+            long offset = (long) heapPage.getId().getPageNumber() * this.pageSize;
+            byte[] data = page.getPageData();
+            assert data.length == BufferPool.getPageSize();
+            ByteBuffer b = ByteBuffer.wrap(data);
+            FileChannel ch = this.channel(true);
+            while (b.hasRemaining()) {
+                ch.write(b, offset + b.position());
+            }
+            this.wrote(heapPage.getId().getPageNumber());
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new IOException("Write failed");
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePages(List<Page> pages) throws IOException {
+        if (pages.isEmpty()) {
+            return;
+        }
+        ArrayList<Page> sorted = new ArrayList<Page>(pages);
+        sorted.sort(new Comparator<Page>() {
+            public int compare(Page a, Page b) {
+                return Integer.compare(a.getId().getPageNumber(), b.getId().getPageNumber());
+            }
+        });
+        try {
+            FileChannel ch = this.channel(true);
+            int start = 0;
+            for (int i = 1; i <= sorted.size(); i++) {
+                if (i == sorted.size() || sorted.get(i).getId().getPageNumber()
+                        != sorted.get(i - 1).getId().getPageNumber() + 1) {
+                    this.writeRun(ch, sorted.subList(start, i));
+                    start = i;
+                }
+            }
+            this.wrote(sorted.get(sorted.size() - 1).getId().getPageNumber());
         } catch (Exception e) {
             e.printStackTrace();
             throw new IOException("Write failed");
         }
     }
 
+    /** Writes consecutive pages with one gathering write. */
+    private void writeRun(FileChannel ch, List<Page> run) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[run.size()];
+        long length = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            byte[] data = run.get(i).getPageData();
+            assert data.length == BufferPool.getPageSize();
+            buffers[i] = ByteBuffer.wrap(data);
+            length += data.length;
+        }
+        long offset = (long) run.get(0).getId().getPageNumber() * this.pageSize;
+        if (buffers.length == 1) {
+            while (buffers[0].hasRemaining()) {
+                ch.write(buffers[0], offset + buffers[0].position());
+            }
+            return;
+        }
+        // a gathering write goes to the channel's position, which nothing
+        // else uses: reads and single page writes give their own
+        synchronized (this.gatherLock) {
+            ch.position(offset);
+            while (length > 0) {
+                length -= ch.write(buffers);
+            }
+        }
+    }
+
+    /** Notes that the file is to be forced, and remaps it in memory
+        mapped mode if a page past the mapped end was written: the file
+        grew (a page was appended by insertTuple). */
+    private void wrote(int pageNumber) throws IOException {
+        this.unforced = true;
+        Mapping m = this.mapping;
+        if (this.memoryMapped && m != null && pageNumber >= m.pages) {
+            this.remap();
+        }
+    }
+
+    /**
+     * Forces the pages written so far to disk; does nothing if none were
+     * written since the last time.
+     */
+    public void force() throws IOException {
+        if (!this.unforced) {
+            return;
+        }
+        // cleared first, so that a write made during the sync forces
+        // the file again next time
+        this.unforced = false;
+        try {
+            this.channel(true).force(false);
+        } catch (IOException e) {
+            this.unforced = true;
+            throw e;
+        }
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -114,47 +349,40 @@ public class HeapFile implements DbFile {
         return file_len / pageSize;
     }
 
-    /* Returns null if no page can be found */
-    private HeapPage findFirstEmptyPage(TransactionId tid) throws DbException, TransactionAbortedException {
+    /* Returns a pinned page with a free slot, or null if no page can be found */
+    private BufferPool.PageHandle findFirstEmptyPage(TransactionId tid) throws DbException, TransactionAbortedException {
         int pageCount = 0;
-        Set<PageId> pagesChecked;
+        // a table bigger than the pool is probed through a ring, so bulk
+        // inserts don't flush the pool with full pages
+        BufferPool.Ring ring = Database.getBufferPool().insertRing(this.getId(), this.numPages());
         while (pageCount < this.numPages()) {
             HeapPageId pageId = new HeapPageId(this.getId(), pageCount);
             try {
             	// Check whether or not the transaction already
             	// has a lock
-            	boolean hadLockBefore = false;
-            	if (Database.getBufferPool().getTransactionToPage().containsKey(tid)) {
-                	hadLockBefore = 
-                			Database.getBufferPool().getTransactionToPage().get(tid).contains(pageId);
-                		
-            	}
-            	// Check whether or not the transaction already has
-            	// a write lock
-            	boolean hadWriteLockBefore = false;
-            	if (Database.getBufferPool().getPageToLock().containsKey(pageId)) {
-            		hadWriteLockBefore = Database.getBufferPool()
-               			.getPageToLock().get(pageId).isWriteLocked() && hadLockBefore;                
-            	}
+            	boolean hadLockBefore = Database.getBufferPool().holdsLock(tid, pageId);
             	// get the page
-            	HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-                // check if we can insert a tuple into this page
-            	if (page.getNumEmptySlots() > 0) {
-                    return page;
+            	BufferPool.PageHandle handle =
+            	    Database.getBufferPool().pinPage(tid, pageId, Permissions.READ_WRITE, ring);
+            	HeapPage page = (HeapPage) handle.getPage();
+                // check if we can insert a tuple into this page; with
+                // record locking, only into a slot no transaction can
+                // still bring back by aborting
+                int free = Database.getBufferPool().isRecordLocking()
+                    ? page.getNumReusableSlots() : page.getNumEmptySlots();
+            	if (free > 0) {
+                    return handle;
                 }
                 else {
+                    handle.close();
                 	// this is the case specified in the readme, where we 
                 	// look without modifying. we can thus unlock straight away
                 	if (!hadLockBefore) {
-                    	Database.getBufferPool().getTransactionToPage()
-        				.get(tid).remove(pageId);
+                        Database.getBufferPool().releasePage(tid, pageId);
                 	}
-                	if (!hadWriteLockBefore) {
-                    	Database.getBufferPool().getPageToLock()
-        				.get(pageId).writeUnlock(tid);
-                	}
-
                 }
+            } catch (TransactionAbortedException e) {
+                throw e;
             } catch (Exception e) {
                 e.printStackTrace();
                 throw new TransactionAbortedException();
@@ -169,73 +397,110 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
     		throws DbException, IOException, TransactionAbortedException
              {
-        HeapPage page = this.findFirstEmptyPage(tid);
-        if (page == null) {
-//    		// System.out.println("HeapFile insert tuple: inserting tuple to new page");
-    		
+        if (Database.getBufferPool().isRecordLocking()) {
+            return this.insertLockingRecord(tid, t);
+        }
+        HeapPage page;
+        BufferPool.PageHandle handle = this.findFirstEmptyPage(tid);
+        if (handle == null) {
         	// lock the filelock when adding a new page
         	this.fileLock.writeLock().lock();
-            //Num pages is 0 indexed
-            HeapPageId pageId = new HeapPageId(this.getId(), this.numPages());
-            // add in a lock to the lock manager
-            HashMap<PageId, PageLock> pageLockMap = 
-            					Database.getBufferPool().getPageToLock(); 
-            // add it to the lock hash map
-            pageLockMap.put(pageId, Database.getBufferPool().new PageLock(pageId));
-            
-            // Swap out our fileLock for the page lock now
-            // Since we are locked during this whole part,
-            // we are still doing 2 phase locking. Think
-            // of it like upgrading a read lock to a write lock
-            Database.getBufferPool().lockWrapper(Database.getBufferPool().WRITE_LOCK,
-            		pageLockMap.get(pageId), tid);
-            
-            
-            // unlock file lock
-        	this.fileLock.writeLock().unlock();
-          
-            // add in a lock to the transaction
-            HashMap<TransactionId, Set<PageId>> transactionLockMap = 
-            			Database.getBufferPool().getTransactionToPage();
-            transactionLockMap.get(tid).add(pageId);     
-            HashMap<TransactionId, Set<PageId>> transactionWLockMap = 
-        			Database.getBufferPool().getTransactionToPage();
-            transactionWLockMap.get(tid).add(pageId);                        
-                        
-            page = new HeapPage(pageId);
-            page.insertTuple(t);
-            this.writePage(page);
-            
-            // adding into our page hash
-            int hashCode = pageId.hashCode();
-            Database.getBufferPool().pageHash.put(hashCode, page);
-            Database.getBufferPool().putInQueue(hashCode);
+        	try {
+                //Num pages is 0 indexed
+                HeapPageId pageId = new HeapPageId(this.getId(), this.numPages());
+                // Lock the new page before the file grows, so nobody else
+                // can get at it first. Since we are locked during this whole
+                // part, we are still doing 2 phase locking. Think of it like
+                // upgrading a read lock to a write lock
+                Database.getBufferPool().lockPageExclusive(tid, pageId);
 
+                // the file grows by an empty page; the tuple goes into the
+                // cached copy, so it reaches disk only through the log
+                page = new HeapPage(pageId);
+                this.writePage(page);
+                page.insertTuple(t);
+        	} finally {
+                // unlock file lock
+                this.fileLock.writeLock().unlock();
+        	}
+
+            // adding into our page table
+            Database.getBufferPool().addNewPage(tid, page);
         } else {
-            page.insertTuple(t); // changes record id
+            // the page stays pinned until it is marked dirty, which keeps
+            // it in the pool from then on
+            try {
+                page = (HeapPage) handle.getPage();
+                page.insertTuple(t); // changes record id
+                page.markDirty(true, tid);
+            } finally {
+                handle.close();
+            }
         }
-        page.markDirty(true, tid);
         return new ArrayList<Page>(Arrays.asList(page));
     }
 
+    /**
+     * insertTuple with record locking. Other transactions may be changing
+     * records on any page, so a new page is appended empty, like a page
+     * that was always there, and the insert goes through the pool.
+     */
+    private ArrayList<Page> insertLockingRecord(TransactionId tid, Tuple t)
+        throws DbException, IOException, TransactionAbortedException {
+        BufferPool pool = Database.getBufferPool();
+        BufferPool.PageHandle handle = this.findFirstEmptyPage(tid);
+        while (true) {
+            if (handle == null) {
+                HeapPageId pageId;
+                this.fileLock.writeLock().lock();
+                try {
+                    pageId = new HeapPageId(this.getId(), this.numPages());
+                    this.writePage(new HeapPage(pageId));
+                } finally {
+                    this.fileLock.writeLock().unlock();
+                }
+                handle = pool.pinPage(tid, pageId, Permissions.READ_WRITE);
+            }
+            try {
+                HeapPage page = (HeapPage) handle.getPage();
+                synchronized (page) {
+                    if (page.getNumReusableSlots() > 0) {
+                        page.insertTuple(t, true); // changes record id
+                        if (!pool.tryLockNewRecord(tid, t.getRecordId())) {
+                            page.deleteTuple(t);
+                            throw new TransactionAbortedException();
+                        }
+                        page.markDirty(true, tid);
+                        return new ArrayList<Page>(Arrays.asList(page));
+                    }
+                }
+            } finally {
+                handle.close();
+            }
+            // others filled the page first
+            handle = null;
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
     	throws DbException, TransactionAbortedException {
         PageId pageId = t.getRecordId().getPageId();
-        HeapPage page = null;
+        Database.getBufferPool().lockRecord(tid, t.getRecordId(), Permissions.READ_WRITE);
+        BufferPool.PageHandle handle;
 		try {
-			page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-		} catch (Exception e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
+			handle = Database.getBufferPool().pinPage(tid, pageId, Permissions.READ_WRITE);
+		} catch (IOException e1) {
+			throw new DbException("can't read page to delete from");
 		}
+        HeapPage page;
         try {
-			page.deleteTuple(t);
-		} catch (DbException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-        page.markDirty(true, tid);
+            page = (HeapPage) handle.getPage();
+            page.deleteTuple(t);
+            page.markDirty(true, tid);
+        } finally {
+            handle.close();
+        }
         return new ArrayList<Page>(Arrays.asList(page));
     }
 
@@ -258,6 +523,17 @@ public class HeapFile implements DbFile {
             private int numIterators = idPointers.size();
             private int onIterator = 0;
             private TransactionId transacId = tid;
+            // pin on the page we are iterating over, so it isn't evicted
+            // from under the tuple iterator
+            private BufferPool.PageHandle handle = null;
+            // read-ahead: pages before this one were asked for already.
+            // The window grows while the scan catches up with reads still
+            // going on, and shrinks when pages read for it are evicted
+            // before it gets to them.
+            private int prefetchedUpTo = 0;
+            private int window = 0;
+            // the frames a scan of a big table recycles, or null
+            private BufferPool.Ring ring = null;
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
@@ -265,6 +541,9 @@ public class HeapFile implements DbFile {
                     throw new TransactionAbortedException();
                 }
                 this.onIterator = 0;
+                this.prefetchedUpTo = 0;
+                this.window = 0;
+                this.ring = Database.getBufferPool().newRing(this.numIterators);
 
                 try {
                     try {
@@ -335,18 +614,87 @@ public class HeapFile implements DbFile {
             @Override
             public void close() {
                 this.iter = null;
+                this.unpinCurrentPage();
             }
 
             private Iterator<Tuple> getNextPageIterator() throws DbException, TransactionAbortedException, IOException {
                 Iterator<Tuple> pageIterator = null;
                 
+                    this.unpinCurrentPage();
                     HeapPageId pid = idPointers.get(onIterator);
-                    HeapPage page =
-                            (HeapPage) Database.getBufferPool().getPage(this.transacId, pid, Permissions.READ_WRITE);
-                    pageIterator = page.iterator();
+                    // a read-only transaction only reads, and under a table
+                    // lock pages are read without locking them; otherwise
+                    // they are locked for the deletes that may follow
+                    BufferPool pool = Database.getBufferPool();
+                    boolean readOnly = (this.transacId != null && this.transacId.isReadOnly())
+                        || pool.holdsTableReadLock(this.transacId, pid.getTableId());
+                    Permissions perm = readOnly ? Permissions.READ_ONLY : Permissions.READ_WRITE;
+                    this.readAhead(pool, pid);
+                    this.handle = pool.pinPage(this.transacId, pid, perm, this.ring);
+                    HeapPage page = (HeapPage) this.handle.getPage();
+                    if (Database.getBufferPool().isRecordLocking()) {
+                        pageIterator = this.lockTuples(page).iterator();
+                    } else {
+                        pageIterator = page.iterator();
+                    }
   
                 return pageIterator;
             }
+
+            /** Has the pages after the one the scan moves to read into the
+                pool in the background. */
+            private void readAhead(BufferPool pool, HeapPageId pid) {
+                int max = pool.getReadAhead();
+                if (this.ring != null) {
+                    // leave room in the ring for the page being read and
+                    // the one before, so read-ahead doesn't recycle pages
+                    // the scan has yet to get to
+                    max = Math.min(max, this.ring.getCapacity() - 2);
+                }
+                if (max <= 0) {
+                    return;
+                }
+                if (this.window == 0) {
+                    this.window = Math.min(4, max);
+                } else if (this.onIterator < this.prefetchedUpTo) {
+                    if (!pool.isCached(pid)) {
+                        // evicted unread: the scan is slower than the pool
+                        // turns over
+                        this.window = Math.max(1, this.window / 2);
+                    } else if (pool.isLoading(pid)) {
+                        // the scan waits for the disk
+                        this.window = Math.min(max, this.window * 2);
+                    }
+                }
+                int end = Math.min(this.numIterators, this.onIterator + 1 + this.window);
+                for (int p = Math.max(this.prefetchedUpTo, this.onIterator + 1); p < end; p++) {
+                    pool.prefetchPage(this.idPointers.get(p), this.ring);
+                }
+                this.prefetchedUpTo = Math.max(this.prefetchedUpTo, end);
+            }
+
+            /** With record locking, locks each record of the page for
+                reading, including those a running transaction may have
+                deleted, and returns the tuples found. */
+            private List<Tuple> lockTuples(HeapPage page) throws TransactionAbortedException {
+                ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+                for (int slot : page.getUsedSlots()) {
+                    Database.getBufferPool().lockRecord(this.transacId,
+                            new RecordId(page.getId(), slot), Permissions.READ_ONLY);
+                    Tuple t = page.getTuple(slot);
+                    if (t != null) {
+                        tuples.add(t);
+                    }
+                }
+                return tuples;
+            }
+
+            private void unpinCurrentPage() {
+                if (this.handle != null) {
+                    this.handle.close();
+                    this.handle = null;
+                }
+            }
         };
     }
 
@@ -84,7 +84,17 @@ public class HeapPage implements Page {
         @return the number of tuples on this page
     */
     private int getNumTuples() {
-        return (int) Math.floor((float) (BufferPool.getPageSize() * 8)/(this.td.getSize() * 8 + 1));
+        return slotsPerPage(this.td);
+    }
+
+    /** @return the number of tuple slots on a page of tuples of td */
+    static int slotsPerPage(TupleDesc td) {
+        return (int) Math.floor((float) (BufferPool.getPageSize() * 8)/(td.getSize() * 8 + 1));
+    }
+
+    /** @return the number of header bytes on a page with numSlots slots */
+    static int headerSize(int numSlots) {
+        return (int) Math.ceil((double)numSlots / 8);
     }
 
     /**
@@ -92,7 +102,7 @@ public class HeapPage implements Page {
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
     private int getHeaderSize() {
-        return (int) Math.ceil((double)this.numSlots / 8);
+        return headerSize(this.numSlots);
     }
     
     /** Return a view of this page before it was modified
@@ -114,12 +124,89 @@ public class HeapPage implements Page {
     }
 
     public void setBeforeImage() {
+        // taken before oldDataLock: the page's monitor always comes first
+        byte[] data = getPageData();
         synchronized(oldDataLock)
         {
-            oldData = getPageData().clone();
+            oldData = data;
+        }
+    }
+
+    /** Makes the given page data the before image. */
+    void setBeforeImage(byte[] data) {
+        synchronized(oldDataLock)
+        {
+            oldData = data.clone();
         }
     }
 
+    /**
+     * Copies the given slots (header bit and tuple), as they are on the page
+     * now, into data, the data of another version of this page.
+     *
+     * @return data
+     */
+    synchronized byte[] copySlotsInto(byte[] data, Collection<Integer> slots) {
+        byte[] now = getPageData();
+        int tupleSize = td.getSize();
+        for (int slot : slots) {
+            int mask = 1 << (slot % 8);
+            data[slot / 8] = (byte) ((data[slot / 8] & ~mask) | (now[slot / 8] & mask));
+            int offset = header.length + slot * tupleSize;
+            System.arraycopy(now, offset, data, offset, tupleSize);
+        }
+        return data;
+    }
+
+    /** Puts the given slots back the way they are in the before image. */
+    synchronized void restoreSlots(Collection<Integer> slots) {
+        HeapPage before = getBeforeImage();
+        for (int slot : slots) {
+            boolean used = before.isSlotUsed(slot);
+            markSlotUsed(slot, used);
+            tuples[slot] = used ? before.tuples[slot] : null;
+        }
+    }
+
+    /** @return true if the slot is used in the before image */
+    private boolean wasSlotUsed(int i) {
+        synchronized(oldDataLock)
+        {
+            return ((oldData[i / 8] >> (i % 8)) & 1) == 1;
+        }
+    }
+
+    /**
+     * @return the slots that are used on the page, or in its before image:
+     *         every slot a reader may have to wait for
+     */
+    synchronized ArrayList<Integer> getUsedSlots() {
+        ArrayList<Integer> slots = new ArrayList<Integer>();
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i) || wasSlotUsed(i)) {
+                slots.add(i);
+            }
+        }
+        return slots;
+    }
+
+    /** @return the tuple in the slot, or null if it is empty */
+    synchronized Tuple getTuple(int slot) {
+        return isSlotUsed(slot) ? tuples[slot] : null;
+    }
+
+    /** @return the number of slots that are empty both on the page and in
+        its before image (see {@link #insertTuple(Tuple, boolean)}) */
+    synchronized int getNumReusableSlots() {
+        int n = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i) && !wasSlotUsed(i)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -172,7 +259,7 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
+    public synchronized byte[] getPageData() {
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -254,7 +341,7 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
 //    	// System.out.println("\n Entering HeapPage deleteTuple \n");
 //    	// System.out.println("\n tuple to delete: " + ((IntField) t.getField(0)).getValue());
     	// System.out.println("\n\nKKKKKKKKKKKKKKKKKKKKKKKKKKKKKKKKKKKKKKKK \n");
@@ -302,6 +389,17 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
+        insertTuple(t, false);
+    }
+
+    /**
+     * Adds the tuple to the page, like {@link #insertTuple(Tuple)}.
+     *
+     * @param reusableOnly true to only use a slot that is also empty in the
+     *        before image, so that no running transaction can still roll
+     *        a deleted tuple back into it
+     */
+    synchronized void insertTuple(Tuple t, boolean reusableOnly) throws DbException {
     	// System.out.println("\n\nVVVVVVVVVVVVVVVVVVVVVVVVVVVVVVVVVVVVVV \n");
     	// System.out.println("Entering HeapPage insertTuple \n");
     	// System.out.println("\nTuple-to-insert value: " +  ((IntField) t.getField(0)).getValue());
@@ -310,11 +408,14 @@ public class HeapPage implements Page {
         if (!t.getTupleDesc().equals(this.td)) {
             throw new DbException("Tuple description is a mismatch");
         }
-        if (this.getNumEmptySlots() == 0) {
+        int slot = 0;
+        while (slot < numSlots
+               && (isSlotUsed(slot) || (reusableOnly && wasSlotUsed(slot)))) {
+            slot++;
+        }
+        if (slot == numSlots) {
             throw new DbException("Page is full, cannot add tuple");
         }
-        int slot = 0;
-        while (isSlotUsed(slot)) { slot++; }
         this.markSlotUsed(slot, true);
         t.setRecordId(new RecordId(this.pid, slot));
         this.tuples[slot] = t;
@@ -351,7 +452,7 @@ public class HeapPage implements Page {
     /**
      * Returns the number of empty slots on this page.
      */
-    public int getNumEmptySlots() {
+    public synchronized int getNumEmptySlots() {
         int num_set_bits = 0;
         int j = 0;
         while (j < this.getHeaderSize()) {
@@ -370,7 +471,7 @@ public class HeapPage implements Page {
     /**
      * Returns true if associated slot on this page is filled.
      */
-    public boolean isSlotUsed(int i) {
+    public synchronized boolean isSlotUsed(int i) {
         int whichByte =  i / 8;
         int bitOffset = i % 8;
         byte currByte = header[whichByte];
@@ -397,7 +498,7 @@ public class HeapPage implements Page {
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
-    public Iterator<Tuple> iterator() {
+    public synchronized Iterator<Tuple> iterator() {
         ArrayList<Tuple> al = new ArrayList<>();
         for (int i=0;i<this.tuples.length;i++) {
             if (isSlotUsed(i)) {
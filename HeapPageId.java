@@ -37,7 +37,7 @@ public class HeapPageId implements PageId {
      * @see BufferPool
      */
     public int hashCode() {
-        int code = this.table_id + this.page_num;
+        int code = 31 * this.table_id + this.page_num;
         return code;
     }
 
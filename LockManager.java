@@ -0,0 +1,685 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager keeps the locks of the BufferPool. What is locked is a whole
+ * table (see {@link #tableKey}), a page (its PageId) or, in record locking
+ * mode, a record (its RecordId). Each locked item has an entry with
+ * the set of transactions holding it and a FIFO queue of waiting requests.
+ * A waiter parks on its own Condition and is signalled exactly when the
+ * lock is handed to it, so nobody polls.
+ * <p>
+ * Locks are shared or exclusive, or intention locks that a transaction
+ * takes on a table or page before it locks pages or records inside it (see
+ * LockMode). The locks each transaction holds inside a table or page are
+ * tracked, so they can be counted and traded for one lock on the table or
+ * page (lock escalation, done by the BufferPool). A transaction that holds a lock and asks for a different one
+ * is upgraded in place, to the weakest mode covering both; its request
+ * goes to the front of the queue so it only waits for the current holders
+ * to leave. Entries are dropped as soon as nobody holds or waits for them.
+ * <p>
+ * Deadlocks are found on a waits-for graph: a waiting transaction has an
+ * edge to every holder, and every request queued ahead of it, that it is
+ * incompatible with. Whenever a request has to wait, the requester
+ * searches the graph for cycles before it parks. Each cycle is broken by
+ * aborting one victim, picked by the configured VictimPolicy; only the
+ * victim gets a DeadlockException, everybody else keeps waiting.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /**
+     * Lock modes. IS and IX are taken on a table or page by a transaction
+     * that is going to read, respectively write, records in it; SIX is S
+     * and IX together: reading all of it while writing some of it.
+     */
+    public enum LockMode {
+        INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED,
+        SHARED_INTENTION_EXCLUSIVE, EXCLUSIVE;
+
+        // which modes can be held together, in declaration order
+        private static final boolean[][] COMPATIBLE = {
+            //  IS     IX     S      SIX    X
+            { true,  true,  true,  true,  false }, // IS
+            { true,  true,  false, false, false }, // IX
+            { true,  false, true,  false, false }, // S
+            { true,  false, false, false, false }, // SIX
+            { false, false, false, false, false }, // X
+        };
+
+        /** @return true if two transactions can hold this and other */
+        public boolean compatibleWith(LockMode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return true if holding this mode grants everything other does */
+        public boolean covers(LockMode other) {
+            return this == other || this == EXCLUSIVE
+                || other == INTENTION_SHARED
+                || (this == SHARED_INTENTION_EXCLUSIVE && other != EXCLUSIVE);
+        }
+
+        /** @return the weakest mode that covers both this and other */
+        public LockMode join(LockMode other) {
+            if (this.covers(other)) {
+                return this;
+            }
+            if (other.covers(this)) {
+                return other;
+            }
+            // S and IX, in some order
+            return other == EXCLUSIVE ? EXCLUSIVE : SHARED_INTENTION_EXCLUSIVE;
+        }
+
+        /** @return true for the modes that allow writing: IX, SIX and X */
+        public boolean allowsWriting() {
+            return this == INTENTION_EXCLUSIVE || this == SHARED_INTENTION_EXCLUSIVE
+                || this == EXCLUSIVE;
+        }
+    }
+
+    /** The key a whole table is locked under. */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        public int hashCode() {
+            return tableId;
+        }
+
+        public String toString() {
+            return "table " + tableId;
+        }
+    }
+
+    /** @return the key to lock the table with the given id under */
+    public static Object tableKey(int tableId) {
+        return new TableKey(tableId);
+    }
+
+    /** @return the key of the table a page is in, or of the page a record
+        is in; null for a table */
+    private static Object parentOf(Object key) {
+        if (key instanceof RecordId) {
+            return ((RecordId) key).getPageId();
+        }
+        if (key instanceof PageId) {
+            return tableKey(((PageId) key).getTableId());
+        }
+        return null;
+    }
+
+    /** How the transaction to abort is chosen from a deadlock cycle. */
+    public enum VictimPolicy {
+        /** the transaction that started last */
+        YOUNGEST,
+        /** the transaction holding the fewest locks */
+        FEWEST_LOCKS,
+        /** the transaction holding the fewest exclusive locks, i.e.
+            that has written the fewest pages */
+        LEAST_WORK
+    }
+
+    /**
+     * How often a waiter re-checks the waits-for graph while it is still
+     * blocked. Cycles are normally found when the last request of the
+     * cycle starts waiting; this only backs that up.
+     */
+    private static final long DETECTION_INTERVAL_MILLIS = 500;
+
+    private static class Request {
+        final TransactionId tid;
+        final LockMode mode;
+        final Condition wakeup;
+        boolean granted = false;
+        // set when the request was picked as a deadlock victim
+        boolean aborted = false;
+
+        Request(TransactionId tid, LockMode mode, Condition wakeup) {
+            this.tid = tid;
+            this.mode = mode;
+            this.wakeup = wakeup;
+        }
+    }
+
+    /** Lock state of one page; all fields are guarded by latch. */
+    private static class LockEntry {
+        final ReentrantLock latch = new ReentrantLock();
+        final HashMap<TransactionId, LockMode> holders = new HashMap<TransactionId, LockMode>();
+        final ArrayDeque<Request> waiters = new ArrayDeque<Request>();
+        // set once the entry has been removed from the lock table; anyone
+        // who still finds it must look the page up again
+        boolean retired = false;
+    }
+
+    private final ConcurrentHashMap<Object, LockEntry> lockTable;
+    // what each transaction holds a lock on
+    private final ConcurrentHashMap<TransactionId, Set<Object>> locksHeld;
+    // the pages and records each transaction holds locks on, by the table
+    // or page they are in
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<Object, Set<Object>>> heldInside;
+    // the page each blocked transaction is waiting for; these are the
+    // nodes of the waits-for graph that have outgoing edges
+    private final ConcurrentHashMap<TransactionId, Object> waitingOn;
+    // one deadlock search at a time, so a cycle is only broken once.
+    // Taken with no entry latch held; entry latches may be taken inside.
+    private final ReentrantLock detectionLock;
+    private volatile VictimPolicy victimPolicy;
+    // 0 means wait for as long as it takes
+    private volatile long timeoutMillis;
+
+    public LockManager() {
+        this.lockTable = new ConcurrentHashMap<Object, LockEntry>();
+        this.locksHeld = new ConcurrentHashMap<TransactionId, Set<Object>>();
+        this.heldInside =
+            new ConcurrentHashMap<TransactionId, ConcurrentHashMap<Object, Set<Object>>>();
+        this.waitingOn = new ConcurrentHashMap<TransactionId, Object>();
+        this.detectionLock = new ReentrantLock();
+        this.victimPolicy = VictimPolicy.YOUNGEST;
+        this.timeoutMillis = 0;
+    }
+
+    /** Sets how deadlock victims are chosen. */
+    public void setVictimPolicy(VictimPolicy policy) {
+        this.victimPolicy = policy;
+    }
+
+    /**
+     * Sets how long a request may wait before its transaction is aborted
+     * even though no deadlock was found, or 0 (the default) for no limit.
+     */
+    public void setLockTimeout(long millis) {
+        this.timeoutMillis = millis;
+    }
+
+    /**
+     * Acquires a lock on a page, record or table for the transaction,
+     * blocking until it is granted. Returns immediately if the transaction
+     * already holds a lock that covers the one asked for.
+     *
+     * @throws DeadlockException if the transaction was chosen as the
+     *         victim of a deadlock
+     * @throws TransactionAbortedException if the request timed out or the
+     *         waiting thread was interrupted
+     */
+    public void acquire(TransactionId tid, Object key, LockMode mode)
+            throws TransactionAbortedException {
+        LockEntry entry;
+        Request request;
+        while (true) {
+            entry = lockTable.computeIfAbsent(key, k -> new LockEntry());
+            entry.latch.lock();
+            try {
+                if (entry.retired) {
+                    continue;
+                }
+                LockMode current = entry.holders.get(tid);
+                if (current != null && current.covers(mode)) {
+                    return;
+                }
+                boolean upgrade = current != null;
+                if (upgrade) {
+                    mode = current.join(mode);
+                }
+                if ((upgrade || entry.waiters.isEmpty())
+                        && compatible(entry, tid, mode)) {
+                    grant(entry, key, tid, mode);
+                    return;
+                }
+
+                request = new Request(tid, mode, entry.latch.newCondition());
+                if (upgrade) {
+                    entry.waiters.addFirst(request);
+                } else {
+                    entry.waiters.addLast(request);
+                }
+                waitingOn.put(tid, key);
+                break;
+            } finally {
+                entry.latch.unlock();
+            }
+        }
+
+        try {
+            // look for a cycle through the new edges before parking; this
+            // must be done without holding any entry latch
+            detectDeadlocks(tid);
+            waitFor(entry, key, request);
+        } finally {
+            waitingOn.remove(tid, key);
+        }
+    }
+
+    /**
+     * Like {@link #acquire}, but never waits.
+     *
+     * @return false if the lock can't be granted right away
+     */
+    public boolean tryAcquire(TransactionId tid, Object key, LockMode mode) {
+        while (true) {
+            LockEntry entry = lockTable.computeIfAbsent(key, k -> new LockEntry());
+            entry.latch.lock();
+            try {
+                if (entry.retired) {
+                    continue;
+                }
+                LockMode current = entry.holders.get(tid);
+                if (current != null && current.covers(mode)) {
+                    return true;
+                }
+                if (current != null) {
+                    mode = current.join(mode);
+                }
+                if ((current != null || entry.waiters.isEmpty())
+                        && compatible(entry, tid, mode)) {
+                    grant(entry, key, tid, mode);
+                    return true;
+                }
+                retireIfUnused(entry, key);
+                return false;
+            } finally {
+                entry.latch.unlock();
+            }
+        }
+    }
+
+    /** Parks the caller until the request is granted or aborted. */
+    private void waitFor(LockEntry entry, Object key, Request request)
+            throws TransactionAbortedException {
+        long limit = timeoutMillis;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(limit);
+        while (true) {
+            entry.latch.lock();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(DETECTION_INTERVAL_MILLIS);
+                while (!request.granted && !request.aborted && nanos > 0L) {
+                    if (limit > 0) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0L) {
+                            giveUp(entry, key, request);
+                            throw new TransactionAbortedException();
+                        }
+                        nanos = Math.min(nanos, left);
+                    }
+                    nanos = request.wakeup.awaitNanos(nanos);
+                }
+                if (request.granted) {
+                    return;
+                }
+                if (request.aborted) {
+                    throw new DeadlockException();
+                }
+            } catch (InterruptedException e) {
+                giveUp(entry, key, request);
+                Thread.currentThread().interrupt();
+                throw new TransactionAbortedException();
+            } finally {
+                entry.latch.unlock();
+            }
+            // still blocked after a while: check the graph again
+            detectDeadlocks(request.tid);
+        }
+    }
+
+    private void giveUp(LockEntry entry, Object key, Request request) {
+        entry.waiters.remove(request);
+        // a request stuck at the head may have been blocking compatible
+        // requests behind it
+        grantWaiters(entry, key);
+        retireIfUnused(entry, key);
+    }
+
+    /**
+     * Searches the waits-for graph reachable from tid and aborts one
+     * victim per cycle found. Returns normally if tid was not chosen (its
+     * own request then fails with DeadlockException when it parks).
+     */
+    private void detectDeadlocks(TransactionId tid) {
+        detectionLock.lock();
+        try {
+            List<TransactionId> cycle;
+            while ((cycle = findCycle(tid)) != null) {
+                TransactionId victim = chooseVictim(cycle);
+                if (!abortWaiter(victim)) {
+                    // the graph changed under us; nothing to break
+                    return;
+                }
+                if (victim.equals(tid)) {
+                    return;
+                }
+            }
+        } finally {
+            detectionLock.unlock();
+        }
+    }
+
+    /** Depth first search for a cycle reachable from start, or null. */
+    private List<TransactionId> findCycle(TransactionId start) {
+        HashMap<TransactionId, Set<TransactionId>> edges =
+            new HashMap<TransactionId, Set<TransactionId>>();
+        HashSet<TransactionId> done = new HashSet<TransactionId>();
+        ArrayList<TransactionId> path = new ArrayList<TransactionId>();
+        HashSet<TransactionId> onPath = new HashSet<TransactionId>();
+        ArrayList<Iterator<TransactionId>> pending = new ArrayList<Iterator<TransactionId>>();
+
+        path.add(start);
+        onPath.add(start);
+        pending.add(waitsFor(start, edges).iterator());
+        while (!path.isEmpty()) {
+            Iterator<TransactionId> it = pending.get(pending.size() - 1);
+            if (!it.hasNext()) {
+                TransactionId finished = path.remove(path.size() - 1);
+                pending.remove(pending.size() - 1);
+                onPath.remove(finished);
+                done.add(finished);
+                continue;
+            }
+            TransactionId next = it.next();
+            if (onPath.contains(next)) {
+                return new ArrayList<TransactionId>(
+                        path.subList(path.indexOf(next), path.size()));
+            }
+            if (!done.contains(next)) {
+                path.add(next);
+                onPath.add(next);
+                pending.add(waitsFor(next, edges).iterator());
+            }
+        }
+        return null;
+    }
+
+    /** The transactions tid is waiting for, memoized in edges. */
+    private Set<TransactionId> waitsFor(TransactionId tid,
+            HashMap<TransactionId, Set<TransactionId>> edges) {
+        Set<TransactionId> out = edges.get(tid);
+        if (out != null) {
+            return out;
+        }
+        out = new HashSet<TransactionId>();
+        edges.put(tid, out);
+        Object key = waitingOn.get(tid);
+        LockEntry entry = key == null ? null : lockTable.get(key);
+        if (entry == null) {
+            return out;
+        }
+        entry.latch.lock();
+        try {
+            Request mine = null;
+            for (Request r : entry.waiters) {
+                if (r.tid.equals(tid)) {
+                    mine = r;
+                    break;
+                }
+            }
+            if (mine == null) {
+                return out;
+            }
+            for (Map.Entry<TransactionId, LockMode> h : entry.holders.entrySet()) {
+                if (!h.getKey().equals(tid)
+                        && !mine.mode.compatibleWith(h.getValue())) {
+                    out.add(h.getKey());
+                }
+            }
+            for (Request r : entry.waiters) {
+                if (r == mine) {
+                    break;
+                }
+                if (!r.tid.equals(tid) && !mine.mode.compatibleWith(r.mode)) {
+                    out.add(r.tid);
+                }
+            }
+        } finally {
+            entry.latch.unlock();
+        }
+        return out;
+    }
+
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        TransactionId victim = null;
+        long victimCost = 0;
+        for (TransactionId t : cycle) {
+            long cost;
+            switch (victimPolicy) {
+            case FEWEST_LOCKS:
+                cost = getLocks(t).size();
+                break;
+            case LEAST_WORK:
+                cost = countExclusive(t);
+                break;
+            default:
+                cost = 0;
+            }
+            // ties go to the youngest transaction
+            if (victim == null || cost < victimCost
+                    || (cost == victimCost && t.getId() > victim.getId())) {
+                victim = t;
+                victimCost = cost;
+            }
+        }
+        return victim;
+    }
+
+    private int countExclusive(TransactionId tid) {
+        int n = 0;
+        for (Object key : getLocks(tid)) {
+            if (getLockMode(tid, key) == LockMode.EXCLUSIVE) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Fails the pending request of a blocked transaction with a
+     * DeadlockException and wakes it up.
+     *
+     * @return false if the transaction was no longer waiting
+     */
+    private boolean abortWaiter(TransactionId victim) {
+        Object key = waitingOn.get(victim);
+        LockEntry entry = key == null ? null : lockTable.get(key);
+        if (entry == null) {
+            return false;
+        }
+        entry.latch.lock();
+        try {
+            for (Request r : entry.waiters) {
+                if (r.tid.equals(victim)) {
+                    entry.waiters.remove(r);
+                    r.aborted = true;
+                    r.wakeup.signal();
+                    grantWaiters(entry, key);
+                    retireIfUnused(entry, key);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            entry.latch.unlock();
+        }
+    }
+
+    /** True if mode can be held by tid next to the current holders. */
+    private boolean compatible(LockEntry entry, TransactionId tid, LockMode mode) {
+        for (Map.Entry<TransactionId, LockMode> h : entry.holders.entrySet()) {
+            if (h.getKey().equals(tid)) {
+                continue;
+            }
+            if (!mode.compatibleWith(h.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grant(LockEntry entry, Object key, TransactionId tid, LockMode mode) {
+        entry.holders.put(tid, mode);
+        locksHeld.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(key);
+        Object parent = parentOf(key);
+        if (parent != null) {
+            heldInside.computeIfAbsent(tid, k -> new ConcurrentHashMap<Object, Set<Object>>())
+                .computeIfAbsent(parent, k -> ConcurrentHashMap.newKeySet())
+                .add(key);
+        }
+    }
+
+    /** Hands the lock to waiters at the head of the queue, in FIFO order. */
+    private void grantWaiters(LockEntry entry, Object key) {
+        while (!entry.waiters.isEmpty()) {
+            Request head = entry.waiters.peekFirst();
+            if (!compatible(entry, head.tid, head.mode)) {
+                return;
+            }
+            entry.waiters.pollFirst();
+            grant(entry, key, head.tid, head.mode);
+            head.granted = true;
+            head.wakeup.signal();
+        }
+    }
+
+    private void retireIfUnused(LockEntry entry, Object key) {
+        if (entry.holders.isEmpty() && entry.waiters.isEmpty()) {
+            entry.retired = true;
+            lockTable.remove(key, entry);
+        }
+    }
+
+    /** Releases the transaction's lock on a page, record or table, if it
+        has one. */
+    public void release(TransactionId tid, Object key) {
+        Set<Object> held = locksHeld.get(tid);
+        if (held != null) {
+            held.remove(key);
+            if (held.isEmpty()) {
+                locksHeld.remove(tid, held);
+            }
+        }
+        Object parent = parentOf(key);
+        Map<Object, Set<Object>> byParent = heldInside.get(tid);
+        Set<Object> siblings = parent == null || byParent == null ? null
+            : byParent.get(parent);
+        if (siblings != null) {
+            siblings.remove(key);
+        }
+        LockEntry entry = lockTable.get(key);
+        if (entry == null) {
+            return;
+        }
+        entry.latch.lock();
+        try {
+            if (entry.holders.remove(tid) != null) {
+                grantWaiters(entry, key);
+            }
+            retireIfUnused(entry, key);
+        } finally {
+            entry.latch.unlock();
+        }
+    }
+
+    /** Releases every lock the transaction holds. */
+    public void releaseAll(TransactionId tid) {
+        for (Object key : getLocks(tid)) {
+            release(tid, key);
+        }
+        locksHeld.remove(tid);
+        heldInside.remove(tid);
+    }
+
+    /** @return true if the transaction holds any lock on the page, record
+        or table */
+    public boolean holdsLock(TransactionId tid, Object key) {
+        Set<Object> held = locksHeld.get(tid);
+        return held != null && held.contains(key);
+    }
+
+    /** @return the mode the transaction holds the page, record or table
+        in, or null */
+    public LockMode getLockMode(TransactionId tid, Object key) {
+        LockEntry entry = lockTable.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.latch.lock();
+        try {
+            return entry.holders.get(tid);
+        } finally {
+            entry.latch.unlock();
+        }
+    }
+
+    /** @return true if a transaction other than tid (any transaction, if
+        tid is null) holds a lock that allows writing (IX, SIX or X) on
+        the page, record or table */
+    public boolean isWriteLockedByOther(TransactionId tid, Object key) {
+        LockEntry entry = lockTable.get(key);
+        if (entry == null) {
+            return false;
+        }
+        entry.latch.lock();
+        try {
+            for (Map.Entry<TransactionId, LockMode> h : entry.holders.entrySet()) {
+                if (!h.getKey().equals(tid) && h.getValue().allowsWriting()) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            entry.latch.unlock();
+        }
+    }
+
+    /** @return a snapshot of the pages the transaction holds locks on */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        HashSet<PageId> pages = new HashSet<PageId>();
+        Set<Object> held = locksHeld.get(tid);
+        if (held != null) {
+            for (Object key : held) {
+                if (key instanceof PageId) {
+                    pages.add((PageId) key);
+                }
+            }
+        }
+        return pages;
+    }
+
+    /** @return a snapshot of everything the transaction holds locks on */
+    public Set<Object> getLocks(TransactionId tid) {
+        Set<Object> held = locksHeld.get(tid);
+        if (held == null) {
+            return new HashSet<Object>();
+        }
+        return new HashSet<Object>(held);
+    }
+
+    /** @return a snapshot of the pages in the table (see tableKey), or the
+        records on the page, the transaction holds locks on */
+    public Set<Object> getLocksInside(TransactionId tid, Object key) {
+        Map<Object, Set<Object>> byParent = heldInside.get(tid);
+        Set<Object> inside = byParent == null ? null : byParent.get(key);
+        if (inside == null) {
+            return new HashSet<Object>();
+        }
+        return new HashSet<Object>(inside);
+    }
+
+    /** @return the number of pages in the table, or records on the page,
+        the transaction holds locks on */
+    public int countLocksInside(TransactionId tid, Object key) {
+        Map<Object, Set<Object>> byParent = heldInside.get(tid);
+        Set<Object> inside = byParent == null ? null : byParent.get(key);
+        return inside == null ? 0 : inside.size();
+    }
+}
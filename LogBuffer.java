@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * LogBuffer holds the tail of the log in memory. Log records are
+ * serialized into a ring of bytes (wrap it in a DataOutputStream to write
+ * fields), and reach the log's segment files in large sequential writes:
+ * when the ring fills up, or when the log has to be on disk up to some
+ * LSN (see {@link #drain}).
+ * <p>
+ * A LogBuffer is not thread safe; LogFile only uses it holding its own
+ * monitor.
+ *
+ * @see LogFile#force(long)
+ */
+class LogBuffer extends OutputStream {
+
+    private final byte[] ring;
+    private int head = 0; // ring index of the oldest buffered byte
+    private int count = 0; // number of buffered bytes
+    private long start = 0; // LSN of the oldest buffered byte
+    private LogSegments segments = null;
+    private long writes = 0;
+
+    LogBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("bad log buffer size " + capacity);
+        }
+        this.ring = new byte[capacity];
+    }
+
+    /**
+     * Makes the buffer append to the log from the given LSN on. Whatever
+     * was buffered and not drained is dropped.
+     */
+    void reset(LogSegments segments, long lsn) {
+        this.segments = segments;
+        this.start = lsn;
+        this.head = 0;
+        this.count = 0;
+    }
+
+    /** @return the LSN the next byte written will get */
+    long end() {
+        return start + count;
+    }
+
+    /** @return the LSN up to which everything is written to the segment
+        files (though maybe not forced to disk) */
+    long drainedLsn() {
+        return start;
+    }
+
+    /** @return the number of writes to the segment files so far */
+    long getWrites() {
+        return writes;
+    }
+
+    public void write(int b) throws IOException {
+        if (count == ring.length) {
+            drain(end());
+        }
+        ring[(head + count) % ring.length] = (byte) b;
+        count++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == ring.length) {
+                drain(end());
+            }
+            int tail = (head + count) % ring.length;
+            // up to the end of the free space or of the array, whichever
+            // comes first
+            int n = Math.min(len, Math.min(ring.length - count, ring.length - tail));
+            System.arraycopy(b, off, ring, tail, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Writes the buffered bytes with LSNs below the given one to the
+     * segment files, in at most two writes (the ring may wrap around).
+     * Nothing is forced.
+     */
+    void drain(long upTo) throws IOException {
+        int n = (int) Math.min(count, Math.max(0, upTo - start));
+        while (n > 0) {
+            int len = Math.min(n, ring.length - head);
+            segments.write(ByteBuffer.wrap(ring, head, len), start);
+            writes++;
+            head = (head + len) % ring.length;
+            count -= len;
+            start += len;
+            n -= len;
+        }
+    }
+}
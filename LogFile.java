@@ -4,6 +4,15 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -15,23 +24,14 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
-
-<p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
-
-       ..
-
-       }
-    }
-</pre>
+writes from happening.)  BufferPool does not synchronize on itself: it
+holds the monitor of a frame (and sometimes of the page in it) while it
+writes the page out, and a write may have to log the page and force
+the log first.  So the lock order is frame and page monitors first,
+then this LogFile.  Code holding the LogFile's monitor may call into
+the BufferPool (rollback and recovery discard pages, a checkpoint reads
+the dirty page table) only where that takes no frame or page monitor,
+and may write pages directly through their DbFile.
 */
 
 /**
@@ -39,42 +39,89 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The log file itself only holds a long integer, the LSN of the
 last written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in segment files next to it (see
+LogSegments). The LSN of a record is its position in the log, counting
+from the first record ever written to it, and stays the same when older
+segments are removed.
+
+<li> Log records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer, the LSN where the
+record began. Recovery takes a record whose end does not match its
+start for the end of the log, which is how reused segments and torn
+records are recognized.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT and PAGE_DELTA
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
+<li>PAGE_DELTA records consist of the id of the updated page (see
+LogFile.writePageId()) and a serialized PageDelta: the tuples added to,
+removed from or changed in each slot, and any other changed byte
+ranges, with both their old and their new bytes.
+
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+read with the LogFile.readPageData() method.  They are no longer
+written, but are still understood when reading an older log.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction, as of the LSN kept in the record's tid
+field, where the checkpoint took its snapshot.  This is followed by the
+dirty page table (as of the same LSN):
+an integer count of pages, and for each page its serialized id (see
+LogFile.writePageId()) and a long integer recLSN, the LSN of the
+first record that may hold changes to the page not yet on disk.
 
 </ul>
 
+<u> Group commit: </u>
+<p>
+
+A committing transaction appends its commit record and then waits, without
+holding the log, until the log is durable up to the end of that record.
+One of the waiters becomes the leader and forces the log once for every
+record appended so far, so commits that arrive while a force is running
+share the next one. The leader may wait for up to a maximum delay, or
+until a maximum batch of commits is pending, before it forces.
+
+<u> Log buffer: </u>
+<p>
+
+Records are not written to the file field by field. They are serialized
+into a LogBuffer, which writes them to the segments in large sequential
+writes when it fills up or when the log is forced; force(lsn) writes and
+syncs only up to the given LSN. Code that reads the log back drains the
+buffer first (see drainBuffer()).
+
+<u> Truncation: </u>
+<p>
+
+logTruncate() does not copy the log. It removes the segments below the
+oldest record recovery would still read, and keeps a few of them to be
+reused as the log grows.
 */
 
 public class LogFile {
 
     final File logFile;
+    // holds the LSN of the last checkpoint
     private RandomAccessFile raf;
+    private final LogSegments segments;
+    // the tail of the log, not yet written to the segments, and a
+    // DataOutput on it; records are appended here
+    private final LogBuffer buffer;//protected by this
+    private final DataOutputStream out;//protected by this
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,17 +129,105 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int PAGE_DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    // LSN of the next record
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    /**
+     * A kind of page that can appear in the log. Page ids of a registered
+     * kind are logged as its numeric code instead of their class name, and
+     * its pages are built from their bytes without reflection.
+     *
+     * @see LogFile#registerPageType
+     */
+    public static abstract class PageType {
+        final byte code;
+        final Class<? extends PageId> idClass;
+
+        /** @param code a number from 1 to 127 identifying the type */
+        protected PageType(int code, Class<? extends PageId> idClass) {
+            if (code < 1 || code > Byte.MAX_VALUE) {
+                throw new IllegalArgumentException("bad page type code " + code);
+            }
+            this.code = (byte) code;
+            this.idClass = idClass;
+        }
+
+        /** @return the page id that serialize() turned into data */
+        protected abstract PageId makeId(int[] data);
+
+        /** @return the page that getPageData() turned into data */
+        protected abstract Page makePage(PageId pid, byte[] data) throws IOException;
+    }
+
+    // page id classes logged by name instead of a registered code
+    static final byte UNREGISTERED_PAGE_TYPE = 0;
+    static final int HEAP_PAGE_TYPE = 1;
+
+    private static final Map<Byte,PageType> pageTypesByCode =
+        new java.util.concurrent.ConcurrentHashMap<Byte,PageType>();
+    private static final Map<Class<?>,PageType> pageTypesByIdClass =
+        new java.util.concurrent.ConcurrentHashMap<Class<?>,PageType>();
+
+    static {
+        registerPageType(new PageType(HEAP_PAGE_TYPE, HeapPageId.class) {
+            protected PageId makeId(int[] data) {
+                return new HeapPageId(data[0], data[1]);
+            }
+
+            protected Page makePage(PageId pid, byte[] data) throws IOException {
+                return new HeapPage((HeapPageId) pid, data);
+            }
+        });
+    }
+
+    /** Registers a kind of page, so that its records are logged compactly.
+        @throws IllegalArgumentException if the code is already taken */
+    public static void registerPageType(PageType type) {
+        PageType old = pageTypesByCode.putIfAbsent(type.code, type);
+        if (old != null && old != type) {
+            throw new IllegalArgumentException("page type code " + type.code
+                    + " is taken by " + old.idClass.getName());
+        }
+        pageTypesByIdClass.put(type.idClass, type);
+    }
+
+    // group commit: LSN up to which the log is known to be on disk, and
+    // whether a leader is forcing it
+    private final ReentrantLock durableLock = new ReentrantLock();
+    private final Condition durableChanged = durableLock.newCondition();
+    private final Condition batchGrew = durableLock.newCondition();
+    private long durableOffset = 0; // protected by durableLock
+    private boolean forcing = false; // protected by durableLock
+
+    private volatile long groupCommitMaxDelayMicros =
+        Long.getLong("simpledb.groupCommitMaxDelayMicros", 0);
+    private volatile int groupCommitMaxBatch =
+        Integer.getInteger("simpledb.groupCommitMaxBatch", 64);
+    // commits appended since the last group force
+    private final AtomicInteger pendingCommits = new AtomicInteger(0);
+    // group forces issued and commits they made durable
+    private final AtomicLong groupForces = new AtomicLong(0);
+    private final AtomicLong groupedCommits = new AtomicLong(0);
+
+    // threads replaying pages in recover(), and what the last run did
+    private volatile int recoveryThreads = Integer.getInteger(
+        "simpledb.recoveryThreads", Runtime.getRuntime().availableProcessors());
+    private volatile long recoveryMillis = 0;
+    private volatile long recoveryRecords = 0;
+
+    static final int DEFAULT_LOG_BUFFER_SIZE = 1 << 20;
+    static final long DEFAULT_LOG_SEGMENT_SIZE = 16 << 20;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -107,7 +242,12 @@ public class LogFile {
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, Long.getLong("simpledb.logSegmentSize",
+                DEFAULT_LOG_SEGMENT_SIZE));
         recoveryUndecided = true;
+        buffer = new LogBuffer(Integer.getInteger("simpledb.logBufferSize",
+                DEFAULT_LOG_BUFFER_SIZE));
+        out = new DataOutputStream(buffer);
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -130,60 +270,167 @@ public class LogFile {
             raf.seek(0);
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.clear();
+            currentOffset = 0;
+            buffer.reset(segments, currentOffset);
         }
     }
 
+    /** Writes everything appended so far to the segments, so that it can
+        be read back through a LogReader. */
+    private void drainBuffer() throws IOException {
+        buffer.drain(buffer.end());
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return the LSN the next log record will get */
+    synchronized long currentLsn() {
+        return Math.max(currentOffset, 0);
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
+            out.writeInt(ABORT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = buffer.end();
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and wait until the log is forced to disk past it. Concurrent
+        commits share one force (see the group commit note above.)
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long commitEnd;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = buffer.end();
+            tidToFirstLogRecord.remove(tid.getId());
+            commitEnd = currentOffset;
+        }
+        if (pendingCommits.incrementAndGet() >= groupCommitMaxBatch) {
+            durableLock.lock();
+            try {
+                batchGrew.signalAll();
+            } finally {
+                durableLock.unlock();
+            }
+        }
+        awaitDurable(commitEnd);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Wait until the log is on disk up to the given LSN, forcing it as
+        the group leader if no other thread is. */
+    private void awaitDurable(long lsn) throws IOException {
+        durableLock.lock();
+        try {
+            while (durableOffset < lsn) {
+                if (forcing) {
+                    durableChanged.awaitUninterruptibly();
+                    continue;
+                }
+                forcing = true;
+                try {
+                    leadGroupForce();
+                } finally {
+                    forcing = false;
+                    durableChanged.signalAll();
+                }
+            }
+        } finally {
+            durableLock.unlock();
+        }
+    }
+
+    /** Called holding durableLock; releases it while forcing. */
+    private void leadGroupForce() throws IOException {
+        // give more commits a chance to join the batch
+        long delayNanos = TimeUnit.MICROSECONDS.toNanos(groupCommitMaxDelayMicros);
+        while (delayNanos > 0 && pendingCommits.get() < groupCommitMaxBatch) {
+            try {
+                delayNanos = batchGrew.awaitNanos(delayNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int batch = pendingCommits.getAndSet(0);
+        // the log's monitor is taken before durableLock elsewhere, so
+        // never the other way around
+        durableLock.unlock();
+        long target;
+        try {
+            synchronized (this) {
+                target = currentOffset;
+                // the write happens under the log's monitor, the sync
+                // doesn't
+                buffer.drain(target);
+            }
+            segments.force();
+        } finally {
+            durableLock.lock();
+        }
+        if (target > durableOffset) {
+            durableOffset = target;
+        }
+        groupForces.incrementAndGet();
+        groupedCommits.addAndGet(batch);
+    }
+
+    /** Sets how long a group commit leader waits for more commits before
+        it forces the log; 0 (the default) forces right away. */
+    public void setGroupCommitMaxDelay(long micros) {
+        if (micros < 0) {
+            throw new IllegalArgumentException("negative delay " + micros);
+        }
+        groupCommitMaxDelayMicros = micros;
+    }
+
+    /** Sets how many pending commits make the group commit leader stop
+        waiting and force the log. */
+    public void setGroupCommitMaxBatch(int commits) {
+        if (commits < 1) {
+            throw new IllegalArgumentException("bad batch size " + commits);
+        }
+        groupCommitMaxBatch = commits;
+    }
+
+    /** @return the number of forces done for group commit */
+    public long getGroupCommitForces() {
+        return groupForces.get();
+    }
+
+    /** @return the average number of commits made durable by one
+        group commit force */
+    public double getAverageGroupCommitSize() {
+        long forces = groupForces.get();
+        return forces == 0 ? 0.0 : (double) groupedCommits.get() / forces;
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -191,91 +438,66 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN just past the record, which the log must be
+                forced to before the page is written; 0 if the images
+                are the same and nothing was logged
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
+        PageDelta delta = PageDelta.compute(before, after);
+        if (delta.isEmpty()) {
+            return 0;
+        }
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           page id (see writePageId)
+           changes between the images (see PageDelta)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        // a page stolen from a transaction that never logged a BEGIN
+        // still has to be rolled back from here
+        if (!tidToFirstLogRecord.containsKey(tid.getId())) {
+            tidToFirstLogRecord.put(tid.getId(), currentOffset);
+        }
+        out.writeInt(PAGE_DELTA_RECORD);
+        out.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageId(out, after.getId());
+        delta.write(out);
+        out.writeLong(currentOffset);
+        currentOffset = buffer.end();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return currentOffset;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
-
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(LogReader in) throws IOException {
         PageId pid;
         Page newPage = null;
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        String pageClassName = in.readUTF();
+        pid = readNamedPageId(in);
 
         try {
-            Class<?> idClass = Class.forName(idClassName);
             Class<?> pageClass = Class.forName(pageClassName);
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+            int pageSize = in.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            in.readFully(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)constructorTaking(pageClass, 2).newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -295,6 +517,152 @@ public class LogFile {
 
     }
 
+    /** Writes a page id: the code of its page type (or 0 and the id's
+        class name if the type is not registered), then the integers of
+        its serialize() with their count first. */
+    void writePageId(DataOutput out, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+        PageType type = pageTypesByIdClass.get(pid.getClass());
+        if (type != null) {
+            out.writeByte(type.code);
+        } else {
+            out.writeByte(UNREGISTERED_PAGE_TYPE);
+            out.writeUTF(pid.getClass().getName());
+        }
+        out.writeByte(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            out.writeInt(pageInfo[i]);
+        }
+    }
+
+    PageId readPageId(DataInput in) throws IOException {
+        byte code = in.readByte();
+        if (code == UNREGISTERED_PAGE_TYPE) {
+            String idClassName = in.readUTF();
+            int numIdArgs = in.readByte();
+            Object idArgs[] = new Object[numIdArgs];
+            for (int i = 0; i < numIdArgs; i++) {
+                idArgs[i] = Integer.valueOf(in.readInt());
+            }
+            return newPageId(idClassName, idArgs);
+        }
+        PageType type = pageTypesByCode.get(code);
+        if (type == null) {
+            throw new IOException("unknown page type " + code);
+        }
+        int data[] = new int[in.readByte()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = in.readInt();
+        }
+        return type.makeId(data);
+    }
+
+    /** Builds a page from its data, like the given page of the same
+        file. */
+    static Page makePage(Page like, byte[] data) throws IOException {
+        PageId pid = like.getId();
+        PageType type = pageTypesByIdClass.get(pid.getClass());
+        if (type != null) {
+            return type.makePage(pid, data);
+        }
+        try {
+            return (Page) constructorTaking(like.getClass(), 2).newInstance(pid, data);
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+            throw new IOException("can't build page: " + e);
+        }
+    }
+
+    /** Reads a page id in the format of UPDATE records: its class name,
+        then the integers of its serialize() with their count first. */
+    private PageId readNamedPageId(LogReader in) throws IOException {
+        String idClassName = in.readUTF();
+        int numIdArgs = in.readInt();
+        Object idArgs[] = new Object[numIdArgs];
+        for (int i = 0; i < numIdArgs; i++) {
+            idArgs[i] = Integer.valueOf(in.readInt());
+        }
+        return newPageId(idClassName, idArgs);
+    }
+
+    private static PageId newPageId(String idClassName, Object[] idArgs)
+        throws IOException {
+        try {
+            return (PageId) constructorTaking(Class.forName(idClassName), idArgs.length)
+                .newInstance(idArgs);
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+            throw new IOException("can't read page id: " + e);
+        }
+    }
+
+    /** Skips page data in the format of UPDATE records.
+        @return the id of the page */
+    private PageId skipPageData(LogReader in) throws IOException {
+        in.readUTF(); // page class name
+        PageId pid = readNamedPageId(in);
+        int pageSize = in.readInt();
+        if (in.skipBytes(pageSize) < pageSize) {
+            throw new EOFException();
+        }
+        return pid;
+    }
+
+    /** Skips the body of an UPDATE or PAGE_DELTA record, after its type
+        and tid.
+        @return the id of the updated page */
+    PageId skipUpdate(LogReader in, int type) throws IOException {
+        if (type == UPDATE_RECORD) {
+            PageId pid = skipPageData(in);
+            skipPageData(in);
+            return pid;
+        }
+        PageId pid = readPageId(in);
+        PageDelta.skip(in);
+        return pid;
+    }
+
+    /** Reads the body of an UPDATE or PAGE_DELTA record, after its type
+        and tid.
+        @return the changes the record made to its page */
+    PageDelta readUpdate(LogReader in, int type) throws IOException {
+        if (type == UPDATE_RECORD) {
+            Page before = readPageData(in);
+            Page after = readPageData(in);
+            return PageDelta.wholePage(before.getPageData(), after.getPageData());
+        }
+        readPageId(in);
+        return PageDelta.read(in);
+    }
+
+    /** Skips the body of a checkpoint record, after its type and tid.
+        @return the smallest recLSN offset in its dirty page table, or
+        Long.MAX_VALUE if it is empty */
+    long skipCheckpoint(LogReader in) throws IOException {
+        int numXactions = in.readInt();
+        in.skipBytes(numXactions * 2 * LONG_SIZE);
+        long minRecLsn = Long.MAX_VALUE;
+        int numDirty = in.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            readPageId(in);
+            minRecLsn = Math.min(minRecLsn, in.readLong());
+        }
+        return minRecLsn;
+    }
+
+    // pages have more than one constructor, and getDeclaredConstructors()
+    // returns them in no particular order
+    private static Constructor<?> constructorTaking(Class<?> c, int numArgs)
+        throws InstantiationException {
+        for (Constructor<?> cons : c.getDeclaredConstructors()) {
+            if (cons.getParameterCount() == numArgs) {
+                return cons;
+            }
+        }
+        throw new InstantiationException("no " + numArgs
+                + "-argument constructor in " + c.getName());
+    }
+
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
@@ -307,150 +675,154 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = buffer.end();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        <p>
+        The checkpoint is fuzzy: instead of writing out the whole buffer
+        pool while everything else waits, it records the active
+        transactions and the dirty page table, and leaves the dirty pages
+        to the page cleaner, which writes them in the background. Recovery
+        starts redo at the smallest recLSN in the table. Pages written
+        before the table was taken are clean and left out of it, so every
+        file written to without a sync is forced before the checkpoint
+        counts. The sync is done without holding the log's monitor, between
+        taking the tables and writing them out.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        // 1: snapshot the transaction and dirty page tables; that is all
+        // that is done holding the log's monitor before the data files
+        // are synced, so logging goes on meanwhile
+        long snapshotLsn;
+        HashMap<Long,Long> active;
+        Map<PageId,Long> dirtyPages;
+        synchronized (this) {
+            preAppend();
+            snapshotLsn = buffer.end();
+            active = new HashMap<Long,Long>(tidToFirstLogRecord);
+            dirtyPages = Database.getBufferPool().getDirtyPageTable();
+        }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        // 2: pages written before the dirty page table was taken are
+        // not in it, so recovery won't redo them from this checkpoint on,
+        // and the log before it is truncated: they must be on disk
+        forceDataFiles();
+
+        // 3: write the checkpoint and make it the restart point. Whatever
+        // was logged since the snapshot is covered by starting recovery no
+        // later than the snapshot's LSN, which the record keeps.
+        long checkpointLsn;
+        synchronized (this) {
+            long startCpOffset, endCpOffset;
+            startCpOffset = buffer.end();
+            checkpointLsn = startCpOffset;
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(snapshotLsn); //no tid; the slot holds the snapshot LSN
+
+            //write list of outstanding transactions
+            out.writeInt(active.size());
+            for (Map.Entry<Long,Long> e : active.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
             }
+
+            //write the dirty page table
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.writeLong(currentOffset);
+            endCpOffset = buffer.end();
+
+            currentOffset = endCpOffset;
+
+            //once the CP is on disk, make sure the CP location in the
+            // log file is updated
+            force();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            raf.getChannel().force(false);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
+        Database.getBufferPool().flushForCheckpoint(checkpointLsn);
         logTruncate();
     }
 
+    /** Forces every table's file to disk, for the pages written to it
+        without a sync (by the page cleaner, or by FORCE commits, whose
+        changes the log alone made durable). */
+    private void forceDataFiles() throws IOException {
+        Catalog catalog = Database.getCatalog();
+        Iterator<Integer> tableIds = catalog.tableIdIterator();
+        while (tableIds.hasNext()) {
+            catalog.getDatabaseFile(tableIds.next()).force();
+        }
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption: the segments below the oldest record recovery would
+        still read are deleted, or kept to be reused (see LogSegments). */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        drainBuffer();
         raf.seek(0);
         long cpLoc = raf.readLong();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            // recovery reads the whole log
+            return;
+        }
 
         long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        LogReader in = new LogReader(segments, cpLoc);
+        try {
+            int cpType = in.readInt();
+            long snapshotLsn = in.readLong();
 
             if (cpType != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
+            // older checkpoints have -1 here
+            if (snapshotLsn >= 0 && snapshotLsn < minLogRecord) {
+                minLogRecord = snapshotLsn;
+            }
 
-            int numOutstanding = raf.readInt();
+            int numOutstanding = in.readInt();
 
             for (int i = 0; i < numOutstanding; i++) {
                 @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
+                long tid = in.readLong();
+                long firstLogRecord = in.readLong();
                 if (firstLogRecord < minLogRecord) {
                     minLogRecord = firstLogRecord;
                 }
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+            // redo starts at the oldest change not on disk
+            int numDirty = in.readInt();
+            for (int i = 0; i < numDirty; i++) {
+                readPageId(in);
+                long recLsn = in.readLong();
+                if (recLsn < minLogRecord) {
+                    minLogRecord = recLsn;
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
             }
+        } finally {
+            in.close();
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        // we can drop everything before minLogRecord
+        int removed = segments.removeBefore(minLogRecord);
+        Debug.log("TRUNCATING LOG; REMOVED " + removed + " SEGMENTS BELOW " + minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -463,22 +835,88 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+        synchronized(this) {
+            preAppend();
+            Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+            if (firstRecord == null) {
+                throw new NoSuchElementException("transaction " + tid.getId()
+                        + " is not live");
+            }
+
+            // the changes the transaction logged, page by page. Each of
+            // its pages on disk is as of its last logged change (a page
+            // is only written with uncommitted changes after they are
+            // logged), so undoing them in reverse order restores it.
+            LinkedHashMap<PageId,ArrayList<PageDelta>> changes =
+                new LinkedHashMap<PageId,ArrayList<PageDelta>>();
+            drainBuffer();
+            LogReader in = new LogReader(segments, firstRecord);
+            try {
+                while (in.getFilePointer() < currentOffset) {
+                    int type = in.readInt();
+                    long recordTid = in.readLong();
+                    switch (type) {
+                    case UPDATE_RECORD:
+                    case PAGE_DELTA_RECORD:
+                        long bodyStart = in.getFilePointer();
+                        PageId pid = skipUpdate(in, type);
+                        if (recordTid == tid.getId()) {
+                            long bodyEnd = in.getFilePointer();
+                            in.seek(bodyStart);
+                            if (!changes.containsKey(pid)) {
+                                changes.put(pid, new ArrayList<PageDelta>());
+                            }
+                            changes.get(pid).add(readUpdate(in, type));
+                            in.seek(bodyEnd);
+                        }
+                        break;
+                    case CHECKPOINT_RECORD:
+                        skipCheckpoint(in);
+                        break;
+                    }
+                    in.readLong(); // record start offset
+                }
+            } finally {
+                in.close();
+            }
+
+            for (Map.Entry<PageId,ArrayList<PageDelta>> e : changes.entrySet()) {
+                PageId pid = e.getKey();
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                Page onDisk = file.readPage(pid);
+                byte[] data = onDisk.getPageData();
+                ArrayList<PageDelta> deltas = e.getValue();
+                for (int i = deltas.size() - 1; i >= 0; i--) {
+                    deltas.get(i).undo(pid, data);
+                }
+                file.writePage(makePage(onDisk, data));
+                Database.getBufferPool().discardPage(pid);
             }
         }
     }
 
+    /** @return true if the transaction has log records that a rollback
+        would have to look at */
+    synchronized boolean isLive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // with every page written, the checkpoint's dirty page table
+            // is empty and start up has nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                drainBuffer();
+                segments.force();
+                segments.close();
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,14 +926,276 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery runs in three passes over the log. Analysis reads the
+        records from the oldest one still needed (the checkpoint, the
+        first record of a transaction active at the checkpoint, or the
+        smallest recLSN in the checkpoint's dirty page table) and lists,
+        page by page, the updates and rollbacks that happened to it. Redo
+        repeats that history for each page, starting from the page as it
+        is on disk: logged changes set bytes to absolute values, so
+        changes the page already has are harmlessly done again. A
+        transaction that aborted undid its changes to the page, newest
+        first, and a transaction that was still running at the crash (a
+        loser) is undone the same way at the end of the history, which
+        makes up the undo pass. Pages are
+        independent of each other, so they are replayed by a pool of
+        threads. Finally an ABORT record is written for each loser.
+        <p>
+        The catalog must be loaded before calling this.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+        synchronized (this) {
+            recoveryUndecided = false;
+            long startNanos = System.nanoTime();
+            if (raf.length() < LONG_SIZE) {
+                // empty log: nothing to recover
+                recoveryMillis = 0;
+                recoveryRecords = 0;
+                raf.setLength(0);
+                raf.writeLong(NO_CHECKPOINT_ID);
+                segments.clear();
+                currentOffset = 0;
+                buffer.reset(segments, currentOffset);
+                return;
             }
-         }
+
+            // analysis
+            raf.seek(0);
+            long cpLoc = raf.readLong();
+            long scanStart = 0;
+            LogReader in = new LogReader(segments, scanStart);
+            if (cpLoc != NO_CHECKPOINT_ID) {
+                scanStart = cpLoc;
+                in.seek(cpLoc);
+                in.readInt();
+                long snapshotLsn = in.readLong();
+                if (snapshotLsn >= 0) {
+                    // what was logged while the checkpoint was taken
+                    scanStart = Math.min(scanStart, snapshotLsn);
+                }
+                int numOutstanding = in.readInt();
+                for (int i = 0; i < numOutstanding; i++) {
+                    in.readLong();
+                    scanStart = Math.min(scanStart, in.readLong());
+                }
+                in.seek(cpLoc + INT_SIZE + LONG_SIZE);
+                scanStart = Math.min(scanStart, skipCheckpoint(in));
+            }
+
+            HashMap<PageId,ArrayList<RedoStep>> history =
+                new HashMap<PageId,ArrayList<RedoStep>>();
+            // transactions with no COMMIT or ABORT yet, and the pages
+            // each one updated
+            HashMap<Long,HashSet<PageId>> running =
+                new HashMap<Long,HashSet<PageId>>();
+            long records = 0;
+            long end = scanStart;
+            in.seek(scanStart);
+            try {
+                while (true) {
+                    long offset = in.getFilePointer();
+                    int type;
+                    long recordTid;
+                    PageId pid = null;
+                    try {
+                        type = in.readInt();
+                        recordTid = in.readLong();
+                        switch (type) {
+                        case BEGIN_RECORD:
+                        case COMMIT_RECORD:
+                        case ABORT_RECORD:
+                            break;
+                        case UPDATE_RECORD:
+                        case PAGE_DELTA_RECORD:
+                            pid = skipUpdate(in, type);
+                            break;
+                        case CHECKPOINT_RECORD:
+                            skipCheckpoint(in);
+                            break;
+                        default:
+                            throw new EOFException("bad record type " + type);
+                        }
+                        if (in.readLong() != offset) {
+                            // left over from the segment's previous use
+                            break;
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // a record torn by the crash, or whatever was
+                        // in a reused segment, ends the log
+                        break;
+                    }
+
+                    switch (type) {
+                    case BEGIN_RECORD:
+                        running.put(recordTid, new HashSet<PageId>());
+                        break;
+                    case UPDATE_RECORD:
+                    case PAGE_DELTA_RECORD:
+                        if (!running.containsKey(recordTid)) {
+                            running.put(recordTid, new HashSet<PageId>());
+                        }
+                        running.get(recordTid).add(pid);
+                        if (!history.containsKey(pid)) {
+                            history.put(pid, new ArrayList<RedoStep>());
+                        }
+                        history.get(pid).add(new RedoStep(recordTid, offset));
+                        break;
+                    case COMMIT_RECORD:
+                        running.remove(recordTid);
+                        break;
+                    case ABORT_RECORD:
+                        HashSet<PageId> pages = running.remove(recordTid);
+                        if (pages != null) {
+                            for (PageId p : pages) {
+                                history.get(p).add(new RedoStep(recordTid, -1));
+                            }
+                        }
+                        break;
+                    }
+                    end = in.getFilePointer();
+                    records++;
+                }
+            } finally {
+                in.close();
+            }
+            // new records must not be followed by old ones
+            segments.cutAt(end);
+
+            // undo: losers roll back at the end of the history
+            for (Map.Entry<Long,HashSet<PageId>> loser : running.entrySet()) {
+                for (PageId p : loser.getValue()) {
+                    history.get(p).add(new RedoStep(loser.getKey(), -1));
+                }
+            }
+
+            // redo, partitioned by page
+            replayPages(history);
+
+            currentOffset = end;
+            buffer.reset(segments, end);
+            for (Long loser : running.keySet()) {
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(loser);
+                out.writeLong(currentOffset);
+                currentOffset = buffer.end();
+            }
+            tidToFirstLogRecord.clear();
+            force();
+
+            recoveryMillis = (System.nanoTime() - startNanos) / 1000000;
+            recoveryRecords = records;
+            Debug.log("Recovered %d log records (%d pages, %d losers) in %d ms, %d records/s",
+                    records, history.size(), running.size(), recoveryMillis,
+                    (long) (records * 1000.0 / Math.max(1, recoveryMillis)));
+        }
+    }
+
+    /** One event in the history of a page: an update record, or the
+        rollback of a transaction that updated the page (offset -1). */
+    private static class RedoStep {
+        final long tid;
+        final long offset;
+
+        RedoStep(long tid, long offset) {
+            this.tid = tid;
+            this.offset = offset;
+        }
+    }
+
+    /** Writes each page in the history as it was after its last step,
+        spreading the pages over recoveryThreads workers. Each worker
+        reads the log through its own file handle. */
+    private void replayPages(HashMap<PageId,ArrayList<RedoStep>> history)
+        throws IOException {
+        int workers = Math.max(1, Math.min(recoveryThreads, history.size()));
+        ArrayList<ArrayList<Map.Entry<PageId,ArrayList<RedoStep>>>> partitions =
+            new ArrayList<ArrayList<Map.Entry<PageId,ArrayList<RedoStep>>>>();
+        for (int i = 0; i < workers; i++) {
+            partitions.add(new ArrayList<Map.Entry<PageId,ArrayList<RedoStep>>>());
+        }
+        for (Map.Entry<PageId,ArrayList<RedoStep>> e : history.entrySet()) {
+            partitions.get(Math.floorMod(e.getKey().hashCode(), workers)).add(e);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            ArrayList<Future<Void>> done = new ArrayList<Future<Void>>();
+            for (final ArrayList<Map.Entry<PageId,ArrayList<RedoStep>>> part : partitions) {
+                done.add(pool.submit(() -> {
+                    LogReader in = new LogReader(segments, 0);
+                    try {
+                        for (Map.Entry<PageId,ArrayList<RedoStep>> e : part) {
+                            replayPage(in, e.getKey(), e.getValue());
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> f : done) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("recovery interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("redo failed: " + e.getCause(), e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Redoes the page's history on its data as found on disk: every
+        logged change in log order, and at each rollback the undo of the
+        rolled back transaction's changes, newest first. */
+    private void replayPage(LogReader in, PageId pid, ArrayList<RedoStep> steps)
+        throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        Page onDisk = file.readPage(pid);
+        byte[] data = onDisk.getPageData();
+        HashMap<Long,ArrayList<PageDelta>> byTid = new HashMap<Long,ArrayList<PageDelta>>();
+        for (RedoStep step : steps) {
+            if (step.offset >= 0) {
+                in.seek(step.offset);
+                int type = in.readInt();
+                in.readLong();
+                PageDelta delta = readUpdate(in, type);
+                delta.redo(pid, data);
+                if (!byTid.containsKey(step.tid)) {
+                    byTid.put(step.tid, new ArrayList<PageDelta>());
+                }
+                byTid.get(step.tid).add(delta);
+            } else {
+                ArrayList<PageDelta> deltas = byTid.remove(step.tid);
+                if (deltas != null) {
+                    for (int i = deltas.size() - 1; i >= 0; i--) {
+                        deltas.get(i).undo(pid, data);
+                    }
+                }
+            }
+        }
+        file.writePage(makePage(onDisk, data));
+        Database.getBufferPool().discardPage(pid);
+    }
+
+    /** Sets the number of threads recover() replays pages with. */
+    public void setRecoveryThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("bad thread count " + threads);
+        }
+        recoveryThreads = threads;
+    }
+
+    /** @return how long the last recover() took, in milliseconds */
+    public long getRecoveryMillis() {
+        return recoveryMillis;
+    }
+
+    /** @return how many log records the last recover() read */
+    public long getRecoveryRecords() {
+        return recoveryRecords;
     }
 
     /** Print out a human readable represenation of the log */
@@ -503,8 +1203,41 @@ public class LogFile {
         // some code goes here
     }
 
+    /** Forces the whole log to disk. */
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        force(currentLsn());
+    }
+
+    /** Forces the log to disk up to the given LSN (see logWrite). Only
+        the buffered records below it are written; the ones after it stay
+        in the buffer to be written with later ones. */
+    public synchronized void force(long lsn) throws IOException {
+        long upTo = Math.min(lsn, currentOffset);
+        durableLock.lock();
+        try {
+            if (upTo <= durableOffset) {
+                return;
+            }
+        } finally {
+            durableLock.unlock();
+        }
+        buffer.drain(upTo);
+        segments.force();
+        durableLock.lock();
+        try {
+            // everything written to the segments is now on disk
+            if (buffer.drainedLsn() > durableOffset) {
+                durableOffset = buffer.drainedLsn();
+                durableChanged.signalAll();
+            }
+        } finally {
+            durableLock.unlock();
+        }
+    }
+
+    /** @return the number of writes of log records to the file */
+    public synchronized long getLogWrites() {
+        return buffer.getWrites();
     }
 
 }
@@ -0,0 +1,172 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * LogReader reads the records of a segmented log from a given LSN on,
+ * going from one segment file to the next as needed. Reads are buffered,
+ * and running past the last segment ends in an EOFException. Only what
+ * was written to the segment files is seen (see LogFile.drainBuffer).
+ * <p>
+ * A LogReader has its own file handles, so threads can each read the log
+ * through their own.
+ *
+ * @see LogSegments
+ */
+class LogReader implements DataInput, Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final LogSegments segments;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private long bufStart; // LSN of buf[0]
+    private RandomAccessFile segment = null;
+    private long segmentStart = -1;
+
+    private final DataInputStream data = new DataInputStream(new InputStream() {
+        public int read() throws IOException {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            return buf[pos++] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        public long skip(long n) {
+            seek(getFilePointer() + n);
+            return n;
+        }
+    });
+
+    LogReader(LogSegments segments, long lsn) {
+        this.segments = segments;
+        this.bufStart = lsn;
+    }
+
+    /** @return the LSN of the next byte to be read */
+    long getFilePointer() {
+        return bufStart + pos;
+    }
+
+    void seek(long lsn) {
+        if (lsn >= bufStart && lsn <= bufStart + limit) {
+            pos = (int) (lsn - bufStart);
+        } else {
+            bufStart = lsn;
+            pos = 0;
+            limit = 0;
+        }
+    }
+
+    /** Reads the next piece of the current segment into the buffer.
+        @return false at the end of the log */
+    private boolean fill() throws IOException {
+        long lsn = getFilePointer();
+        long start = segments.segmentStart(lsn);
+        if (start != segmentStart) {
+            if (segment != null) {
+                segment.close();
+                segment = null;
+            }
+            File file = segments.segmentFile(start);
+            if (!file.exists()) {
+                return false;
+            }
+            segment = new RandomAccessFile(file, "r");
+            segmentStart = start;
+        }
+        int len = (int) Math.min(BUFFER_SIZE, start + segments.getSegmentSize() - lsn);
+        segment.seek(lsn - start);
+        int n = segment.read(buf, 0, len);
+        if (n <= 0) {
+            return false;
+        }
+        bufStart = lsn;
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    public void close() throws IOException {
+        if (segment != null) {
+            segment.close();
+            segment = null;
+        }
+    }
+
+    public void readFully(byte[] b) throws IOException {
+        data.readFully(b);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        data.readFully(b, off, len);
+    }
+
+    public int skipBytes(int n) {
+        seek(getFilePointer() + n);
+        return n;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return data.readBoolean();
+    }
+
+    public byte readByte() throws IOException {
+        return data.readByte();
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return data.readUnsignedByte();
+    }
+
+    public short readShort() throws IOException {
+        return data.readShort();
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return data.readUnsignedShort();
+    }
+
+    public char readChar() throws IOException {
+        return data.readChar();
+    }
+
+    public int readInt() throws IOException {
+        return data.readInt();
+    }
+
+    public long readLong() throws IOException {
+        return data.readLong();
+    }
+
+    public float readFloat() throws IOException {
+        return data.readFloat();
+    }
+
+    public double readDouble() throws IOException {
+        return data.readDouble();
+    }
+
+    @Deprecated
+    public String readLine() throws IOException {
+        return data.readLine();
+    }
+
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
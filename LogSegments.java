@@ -0,0 +1,220 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogSegments stores the records of a log in fixed-size segment files.
+ * The log is one sequence of bytes, and the LSN of a byte is its position
+ * in it; a segment holds the bytes from an LSN that is a multiple of the
+ * segment size, and is named after it (the log file's name, a dot and the
+ * LSN as 16 hex digits). New segments are preallocated to their full size.
+ * <p>
+ * Truncating the log (see {@link #removeBefore}) only deletes the segments
+ * below an LSN; a few of them are kept and renamed to LSNs past the end of
+ * the log, to be written over instead of allocating new files. What they
+ * held before is not a valid record at its new LSN (see LogFile.recover).
+ *
+ * @see LogFile
+ * @Threadsafe
+ */
+class LogSegments {
+
+    /** Segments kept for reuse beyond the one being written. */
+    static final int SPARE_SEGMENTS = 2;
+
+    private final File dir;
+    private final String prefix;
+    private final long segmentSize;
+    // segments open for writing, and the ones written since the last
+    // force; protected by this
+    private final TreeMap<Long,RandomAccessFile> open = new TreeMap<Long,RandomAccessFile>();
+    private final Set<Long> unforced = new HashSet<Long>();
+
+    /**
+     * @param logFile the file the segments are named after
+     * @param segmentSize the number of bytes in a segment
+     */
+    LogSegments(File logFile, long segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("bad log segment size " + segmentSize);
+        }
+        this.dir = logFile.getAbsoluteFile().getParentFile();
+        this.prefix = logFile.getName() + ".";
+        this.segmentSize = segmentSize;
+    }
+
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the LSN of the first byte of the segment holding lsn */
+    long segmentStart(long lsn) {
+        return lsn - Math.floorMod(lsn, segmentSize);
+    }
+
+    /** @return the file of the segment starting at the given LSN */
+    File segmentFile(long start) {
+        return new File(dir, prefix + String.format("%016x", start));
+    }
+
+    /** @return the starting LSNs of the segment files on disk, in order */
+    synchronized List<Long> segmentStarts() {
+        ArrayList<Long> starts = new ArrayList<Long>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix) && name.length() == prefix.length() + 16) {
+                    try {
+                        starts.add(Long.parseLong(name.substring(prefix.length()), 16));
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        Collections.sort(starts);
+        return starts;
+    }
+
+    /** Writes the bytes at the given LSN, across segments if need be. */
+    synchronized void write(ByteBuffer bytes, long lsn) throws IOException {
+        while (bytes.hasRemaining()) {
+            long start = segmentStart(lsn);
+            int n = (int) Math.min(bytes.remaining(), start + segmentSize - lsn);
+            ByteBuffer part = bytes.duplicate();
+            part.limit(part.position() + n);
+            FileChannel channel = channelFor(start);
+            while (part.hasRemaining()) {
+                channel.write(part, lsn - start + (part.position() - bytes.position()));
+            }
+            unforced.add(start);
+            bytes.position(bytes.position() + n);
+            lsn += n;
+        }
+    }
+
+    private FileChannel channelFor(long start) throws IOException {
+        RandomAccessFile f = open.get(start);
+        if (f == null) {
+            File file = segmentFile(start);
+            boolean reused = file.exists();
+            f = new RandomAccessFile(file, "rw");
+            if (!reused) {
+                f.setLength(segmentSize);
+            }
+            open.put(start, f);
+        }
+        return f.getChannel();
+    }
+
+    /** Forces the segments written since the last force to disk. */
+    void force() throws IOException {
+        ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
+        synchronized (this) {
+            for (Long start : unforced) {
+                channels.add(open.get(start).getChannel());
+            }
+            unforced.clear();
+        }
+        // without holding this, so writes can go on meanwhile
+        for (FileChannel channel : channels) {
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // removed by a truncation, which only removes what is
+                // behind a forced checkpoint
+            }
+        }
+    }
+
+    /**
+     * Removes the segments that only hold bytes below the given LSN,
+     * keeping up to SPARE_SEGMENTS of them, renamed to follow the last
+     * segment, for reuse.
+     *
+     * @return the number of segments removed
+     */
+    synchronized int removeBefore(long lsn) throws IOException {
+        List<Long> starts = segmentStarts();
+        long current = segmentStart(lsn);
+        long next = starts.isEmpty() ? current : Math.max(current, starts.get(starts.size() - 1));
+        int spares = 0;
+        for (Long start : starts) {
+            if (start > current) {
+                spares++;
+            }
+        }
+        int removed = 0;
+        for (Long start : starts) {
+            if (start + segmentSize > lsn) {
+                break;
+            }
+            RandomAccessFile f = open.remove(start);
+            if (f != null) {
+                f.close();
+            }
+            unforced.remove(start);
+            File file = segmentFile(start);
+            if (spares < SPARE_SEGMENTS) {
+                next += segmentSize;
+                if (file.renameTo(segmentFile(next))) {
+                    spares++;
+                    removed++;
+                    continue;
+                }
+            }
+            if (file.delete()) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /** Removes the segments past the one holding the given LSN, and
+        zeroes that one from the LSN on, so nothing is left after it. */
+    synchronized void cutAt(long lsn) throws IOException {
+        long current = segmentStart(lsn);
+        for (Long start : segmentStarts()) {
+            if (start > current) {
+                RandomAccessFile f = open.remove(start);
+                if (f != null) {
+                    f.close();
+                }
+                unforced.remove(start);
+                segmentFile(start).delete();
+            }
+        }
+        if (segmentFile(current).exists()) {
+            FileChannel channel = channelFor(current);
+            ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+            long pos = lsn - current;
+            while (pos < segmentSize) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), segmentSize - pos));
+                pos += channel.write(zeros, pos);
+            }
+            channel.force(false);
+        }
+    }
+
+    /** Deletes all segments. */
+    synchronized void clear() throws IOException {
+        close();
+        for (Long start : segmentStarts()) {
+            segmentFile(start).delete();
+        }
+    }
+
+    /** Closes the open segments. */
+    synchronized void close() throws IOException {
+        for (RandomAccessFile f : open.values()) {
+            f.close();
+        }
+        open.clear();
+        unforced.clear();
+    }
+}
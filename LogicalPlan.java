@@ -36,6 +36,7 @@ public class LogicalPlan {
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
     private String query;
+    private boolean lockTables = false;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -60,6 +61,17 @@ public class LogicalPlan {
         this.query = query;
     }
       
+    /** Let the scans of big tables lock the whole table for reading up
+        front (see {@link SeqScan#setLockTable}) instead of escalating to
+        it page by page. Meant for plans that only read: a plan that goes
+        on to write the tables it scans would have to upgrade the lock.
+
+        @param lockTables true to lock scanned tables up front
+    */
+    public void setLockTables(boolean lockTables) {
+        this.lockTables = lockTables;
+    }
+
     /** Get the query text associated with this plan via {@link #setQuery}.
      */
     public String getQuery() {
@@ -302,6 +314,13 @@ public class LogicalPlan {
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
+            // a scan that would escalate to a table lock anyway takes it
+            // up front
+            TableStats tableStats = baseTableStats.get(baseTableName);
+            if (lockTables && tableStats != null && tableStats.numPages
+                    > Database.getBufferPool().getTableLockEscalation()) {
+                ss.setLockTable(true);
+            }
             filterSelectivities.put(table.alias, 1.0);
 
         }
@@ -0,0 +1,34 @@
+package simpledb;
+
+/**
+ * Plain least recently used replacement: every access moves the page to
+ * the front of one list, and victims are taken from the back.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    private final RecencyList lru = new RecencyList();
+
+    public void pageAccessed(PageId pid) {
+        lru.addFirst(pid);
+    }
+
+    public void pageInserted(PageId pid) {
+        lru.addFirst(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        lru.remove(pid);
+    }
+
+    public void pageDirtied(PageId pid) {
+        lru.setDirty(pid, true);
+    }
+
+    public void pageCleaned(PageId pid) {
+        lru.setDirty(pid, false);
+    }
+
+    public PageId chooseVictim(PageId incoming, Evictable filter) {
+        return lru.findLast(filter);
+    }
+}
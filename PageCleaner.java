@@ -0,0 +1,98 @@
+package simpledb;
+
+/**
+ * PageCleaner runs the background writer threads of a BufferPool. Each
+ * thread wakes up periodically, or when the pool had to write a dirty
+ * victim itself, and writes out cold dirty pages of its share of the pool
+ * once the number of dirty pages passes the high watermark, until it is
+ * back down to the low watermark. That way a miss should find a clean
+ * victim and not have to wait for a write.
+ * <p>
+ * The threads are daemons and are started the first time the pool fills
+ * up, so pools that never evict anything never start them.
+ *
+ * @see BufferPool#setPageCleanerThreads
+ * @see BufferPool#setDirtyPageWatermarks
+ * @Threadsafe
+ */
+class PageCleaner {
+
+    /** How long a cleaner sleeps when nobody wakes it up. */
+    static final long INTERVAL_MILLIS = 50;
+
+    private final BufferPool pool;
+    private final Object signal = new Object();
+    private Thread[] threads = new Thread[0]; // protected by this
+    // set holding this; the threads read it without
+    private volatile boolean stopped = false;
+    private boolean wakeUp = false; // protected by signal
+
+    PageCleaner(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /** Starts the given number of threads, unless they already run. */
+    synchronized void start(int numThreads) {
+        if (stopped || threads.length > 0 || numThreads <= 0) {
+            return;
+        }
+        threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int shard = i;
+            threads[i] = new Thread("simpledb-page-cleaner-" + i) {
+                public void run() {
+                    cleanLoop(shard, numThreads);
+                }
+            };
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /** @return true if the cleaner threads are running */
+    synchronized boolean isRunning() {
+        return threads.length > 0;
+    }
+
+    /**
+     * Stops the threads; they can't be started again. The threads are not
+     * interrupted, which would close the file channel a write is using:
+     * each one exits once it finishes its round.
+     */
+    synchronized void stop() {
+        stopped = true;
+        threads = new Thread[0];
+        wakeUp();
+    }
+
+    /** Asks the cleaners to look at the pool now. */
+    void wakeUp() {
+        synchronized (signal) {
+            wakeUp = true;
+            signal.notifyAll();
+        }
+    }
+
+    private void cleanLoop(int shard, int shards) {
+        while (!stopped) {
+            try {
+                synchronized (signal) {
+                    if (!wakeUp) {
+                        signal.wait(INTERVAL_MILLIS);
+                    }
+                    wakeUp = false;
+                }
+                if (stopped) {
+                    return;
+                }
+                pool.cleanDirtyPages(shard, shards);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                // a failed write is retried on the next round, or by
+                // whoever evicts the page
+                Debug.log("page cleaner: %s", e);
+            }
+        }
+    }
+}
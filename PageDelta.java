@@ -0,0 +1,285 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * PageDelta is the difference between two versions of a page, as logged in
+ * an update record. Changes to the tuple slots of a HeapPage are kept per
+ * slot, with only the tuple's bytes and its slot number; whatever else
+ * differs is kept as byte ranges. Each change has both the old and the new
+ * bytes, so a delta can be redone (old to new) and undone (new to old) on
+ * the raw data of the page. Both set bytes to absolute values, so redoing
+ * a change the page already has does no harm.
+ *
+ * @see LogFile#logWrite
+ */
+final class PageDelta {
+
+    static final byte SLOT_INSERT = 1;
+    static final byte SLOT_DELETE = 2;
+    static final byte SLOT_UPDATE = 3;
+    static final byte BYTE_RANGE = 4;
+
+    // unchanged bytes between two differing ranges that are still worth
+    // logging (twice) to save the overhead of another change
+    private static final int RANGE_GAP = 8;
+
+    private static final byte[] NO_BYTES = new byte[0];
+
+    /** One change: the tuple in a slot, or a range of bytes. */
+    private static class Change {
+        final byte kind;
+        final int position; // slot number, or offset of a byte range
+        final byte[] oldBytes;
+        final byte[] newBytes;
+
+        Change(byte kind, int position, byte[] oldBytes, byte[] newBytes) {
+            this.kind = kind;
+            this.position = position;
+            this.oldBytes = oldBytes;
+            this.newBytes = newBytes;
+        }
+    }
+
+    private final ArrayList<Change> changes;
+
+    private PageDelta(ArrayList<Change> changes) {
+        this.changes = changes;
+    }
+
+    /** @return the changes that turn before into after */
+    static PageDelta compute(Page before, Page after) {
+        byte[] from = before.getPageData();
+        byte[] to = after.getPageData();
+        ArrayList<Change> changes = new ArrayList<Change>();
+        byte[] work = from;
+        if (after instanceof HeapPage) {
+            SlotLayout layout = new SlotLayout(after.getId());
+            work = from.clone();
+            for (int slot = 0; slot < layout.numSlots; slot++) {
+                boolean wasUsed = layout.isUsed(from, slot);
+                boolean isUsed = layout.isUsed(to, slot);
+                int offset = layout.offset(slot);
+                Change c = null;
+                if (!wasUsed && isUsed) {
+                    c = new Change(SLOT_INSERT, slot, NO_BYTES,
+                            copy(to, offset, layout.tupleSize));
+                } else if (wasUsed && !isUsed) {
+                    c = new Change(SLOT_DELETE, slot,
+                            copy(from, offset, layout.tupleSize), NO_BYTES);
+                } else if (wasUsed
+                           && !sameBytes(from, to, offset, layout.tupleSize)) {
+                    c = new Change(SLOT_UPDATE, slot,
+                            copy(from, offset, layout.tupleSize),
+                            copy(to, offset, layout.tupleSize));
+                }
+                if (c != null) {
+                    changes.add(c);
+                    apply(c, work, layout, true);
+                }
+            }
+        }
+        addByteRanges(changes, work, to);
+        return new PageDelta(changes);
+    }
+
+    /** @return a delta replacing the whole page, for full page images */
+    static PageDelta wholePage(byte[] before, byte[] after) {
+        ArrayList<Change> changes = new ArrayList<Change>();
+        changes.add(new Change(BYTE_RANGE, 0, before, after));
+        return new PageDelta(changes);
+    }
+
+    private static void addByteRanges(ArrayList<Change> changes, byte[] from, byte[] to) {
+        int i = 0;
+        while (i < to.length) {
+            if (from[i] == to[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1; // exclusive end of the differing bytes so far
+            for (int j = end; j < to.length && j - end < RANGE_GAP; j++) {
+                if (from[j] != to[j]) {
+                    end = j + 1;
+                }
+            }
+            changes.add(new Change(BYTE_RANGE, start,
+                    copy(from, start, end - start), copy(to, start, end - start)));
+            i = end;
+        }
+    }
+
+    /** @return true if the delta changes nothing */
+    boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /** Changes the raw data of the page from its old to its new version. */
+    void redo(PageId pid, byte[] data) {
+        SlotLayout layout = null;
+        for (Change c : changes) {
+            if (c.kind != BYTE_RANGE && layout == null) {
+                layout = new SlotLayout(pid);
+            }
+            apply(c, data, layout, true);
+        }
+    }
+
+    /** Changes the raw data of the page from its new to its old version. */
+    void undo(PageId pid, byte[] data) {
+        SlotLayout layout = null;
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            Change c = changes.get(i);
+            if (c.kind != BYTE_RANGE && layout == null) {
+                layout = new SlotLayout(pid);
+            }
+            apply(c, data, layout, false);
+        }
+    }
+
+    private static void apply(Change c, byte[] data, SlotLayout layout, boolean redo) {
+        byte[] bytes = redo ? c.newBytes : c.oldBytes;
+        switch (c.kind) {
+        case BYTE_RANGE:
+            System.arraycopy(bytes, 0, data, c.position, bytes.length);
+            break;
+        case SLOT_UPDATE:
+            System.arraycopy(bytes, 0, data, layout.offset(c.position), bytes.length);
+            break;
+        case SLOT_INSERT:
+        case SLOT_DELETE:
+            // an insert undone is a delete, and the other way round
+            boolean fill = (c.kind == SLOT_INSERT) == redo;
+            int offset = layout.offset(c.position);
+            if (fill) {
+                System.arraycopy(bytes, 0, data, offset, bytes.length);
+            } else {
+                // empty slots are all zero (see HeapPage.getPageData)
+                Arrays.fill(data, offset, offset + layout.tupleSize, (byte) 0);
+            }
+            layout.setUsed(data, c.position, fill);
+            break;
+        default:
+            throw new IllegalStateException("bad change kind " + c.kind);
+        }
+    }
+
+    /*
+     * Serialized form: the number of changes, then for each change its
+     * kind, its slot or offset, and the old and/or new bytes it carries
+     * (inserts only have new bytes, deletes only old ones), each preceded
+     * by its length.
+     */
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(changes.size());
+        for (Change c : changes) {
+            out.writeByte(c.kind);
+            out.writeInt(c.position);
+            if (c.kind != SLOT_INSERT) {
+                writeBytes(out, c.oldBytes);
+            }
+            if (c.kind != SLOT_DELETE) {
+                writeBytes(out, c.newBytes);
+            }
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        int n = readCount(in);
+        ArrayList<Change> changes = new ArrayList<Change>(n);
+        for (int i = 0; i < n; i++) {
+            byte kind = in.readByte();
+            int position = in.readInt();
+            byte[] oldBytes = kind == SLOT_INSERT ? NO_BYTES : readBytes(in);
+            byte[] newBytes = kind == SLOT_DELETE ? NO_BYTES : readBytes(in);
+            changes.add(new Change(kind, position, oldBytes, newBytes));
+        }
+        return new PageDelta(changes);
+    }
+
+    /** Skips a serialized delta. */
+    static void skip(DataInput in) throws IOException {
+        int n = readCount(in);
+        for (int i = 0; i < n; i++) {
+            byte kind = in.readByte();
+            in.readInt();
+            int ranges = (kind == SLOT_INSERT || kind == SLOT_DELETE) ? 1 : 2;
+            for (int r = 0; r < ranges; r++) {
+                int len = readCount(in);
+                if (in.skipBytes(len) < len) {
+                    throw new EOFException();
+                }
+            }
+        }
+    }
+
+    private static void writeBytes(DataOutput out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        byte[] b = new byte[readCount(in)];
+        in.readFully(b);
+        return b;
+    }
+
+    /** Reads a number of changes or bytes, which can't be more than the
+        bytes on a page in a delta that was actually written. */
+    private static int readCount(DataInput in) throws IOException {
+        int n = in.readInt();
+        if (n < 0 || n > BufferPool.getPageSize()) {
+            throw new IOException("not a page delta");
+        }
+        return n;
+    }
+
+    private static byte[] copy(byte[] b, int from, int len) {
+        byte[] c = new byte[len];
+        System.arraycopy(b, from, c, 0, len);
+        return c;
+    }
+
+    private static boolean sameBytes(byte[] a, byte[] b, int from, int len) {
+        for (int i = from; i < from + len; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Where the header bits and tuples of a HeapPage are. */
+    private static class SlotLayout {
+        final int numSlots;
+        final int headerSize;
+        final int tupleSize;
+
+        SlotLayout(PageId pid) {
+            TupleDesc td = Database.getCatalog().getTupleDesc(pid.getTableId());
+            this.numSlots = HeapPage.slotsPerPage(td);
+            this.headerSize = HeapPage.headerSize(numSlots);
+            this.tupleSize = td.getSize();
+        }
+
+        int offset(int slot) {
+            return headerSize + slot * tupleSize;
+        }
+
+        boolean isUsed(byte[] data, int slot) {
+            return ((data[slot / 8] >> (slot % 8)) & 1) == 1;
+        }
+
+        void setUsed(byte[] data, int slot, boolean used) {
+            if (used) {
+                data[slot / 8] |= 1 << (slot % 8);
+            } else {
+                data[slot / 8] &= ~(1 << (slot % 8));
+            }
+        }
+    }
+}
@@ -279,6 +279,13 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        // full scans may lock their tables up front when nothing will
+        // write them under this transaction: the query runs in a
+        // transaction of its own, or one that only reads. Otherwise a
+        // later statement would have to upgrade the table lock, so the
+        // scans lock pages and escalate as they go.
+        lp.setLockTables(!inUserTrans
+                || tId.getIsolation() == TransactionId.Isolation.READ_ONLY);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -453,7 +460,10 @@ public class Parser {
             if (curtrans != null)
                 throw new simpledb.ParsingException(
                         "Can't start new transactions until current transaction has been committed or rolledback.");
-            curtrans = new Transaction();
+            // SET TRANSACTION READ ONLY: shared locks only, and no logging
+            curtrans = new Transaction(s.isReadOnly()
+                    ? TransactionId.Isolation.READ_ONLY
+                    : TransactionId.Isolation.LOCKING);
             curtrans.start();
             inUserTrans = true;
             System.out.println("Started a new transaction tid = "
@@ -607,6 +617,15 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
+        // bring the tables back to their committed state after a crash
+        LogFile log = Database.getLogFile();
+        log.recover();
+        if (log.getRecoveryRecords() > 0) {
+            System.out.printf("Recovered %d log records in %d ms (%d records/s)\n",
+                    log.getRecoveryRecords(), log.getRecoveryMillis(),
+                    (long) (log.getRecoveryRecords() * 1000.0
+                            / Math.max(1, log.getRecoveryMillis())));
+        }
         TableStats.computeStatistics();
 
         String queryFile = null;
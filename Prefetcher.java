@@ -0,0 +1,121 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prefetcher runs the background reader threads of a BufferPool. A scan
+ * hands it the frames of pages it will want soon (see
+ * {@link BufferPool#prefetchPage}), already published in the page table,
+ * and a reader fills them while the scan works on the pages before, so
+ * that the scan finds them in the pool instead of waiting for each read.
+ * <p>
+ * The queue is bounded: when it is full, the frame is given back and the
+ * scan reads the page itself. The threads are daemons and are started by
+ * the first prefetch, so pools that are never scanned never start them.
+ *
+ * @see BufferPool#setReadAhead
+ * @Threadsafe
+ */
+class Prefetcher {
+
+    /** How long a reader waits for work before looking whether it was
+        stopped. */
+    static final long INTERVAL_MILLIS = 50;
+
+    private final BufferPool pool;
+    private final int capacity;
+    // frames waiting to be read
+    private final ArrayDeque<BufferPool.Frame> queue; // protected by this
+    private Thread[] threads = new Thread[0]; // protected by this
+    private int numThreads; // protected by this
+    private boolean stopped = false; // protected by this
+
+    Prefetcher(BufferPool pool, int capacity) {
+        this.pool = pool;
+        this.capacity = Math.max(1, capacity);
+        this.queue = new ArrayDeque<BufferPool.Frame>();
+    }
+
+    /** Sets the number of threads started by the first prefetch. */
+    synchronized void setThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Queues a frame to be read, starting the threads if they don't run
+     * yet.
+     *
+     * @return false if the frame was not queued, because the queue is
+     *         full or there are no threads to read it
+     */
+    synchronized boolean offer(BufferPool.Frame frame) {
+        if (stopped || numThreads <= 0 || queue.size() >= capacity) {
+            return false;
+        }
+        if (threads.length == 0) {
+            threads = new Thread[numThreads];
+            for (int i = 0; i < numThreads; i++) {
+                threads[i] = new Thread("simpledb-prefetcher-" + i) {
+                    public void run() {
+                        readLoop();
+                    }
+                };
+                threads[i].setDaemon(true);
+                threads[i].start();
+            }
+        }
+        queue.add(frame);
+        notify();
+        return true;
+    }
+
+    /**
+     * Stops the threads; they can't be started again. Frames still queued
+     * are given back, so that nobody waits for them. The threads are not
+     * interrupted, which would close the file channel a read is using.
+     */
+    synchronized void stop() {
+        stopped = true;
+        while (!queue.isEmpty()) {
+            pool.withdrawFrame(queue.poll());
+        }
+        threads = new Thread[0];
+        notifyAll();
+    }
+
+    private BufferPool.Frame take() throws InterruptedException {
+        synchronized (this) {
+            long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(INTERVAL_MILLIS);
+            while (queue.isEmpty() && !stopped) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return null;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return queue.poll();
+        }
+    }
+
+    private void readLoop() {
+        while (true) {
+            BufferPool.Frame frame;
+            try {
+                frame = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (frame == null) {
+                synchronized (this) {
+                    if (stopped) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            pool.loadPrefetched(frame);
+        }
+    }
+}
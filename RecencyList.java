@@ -0,0 +1,194 @@
+package simpledb;
+
+import java.util.HashMap;
+
+/**
+ * RecencyList is an ordered set of page ids backed by a hash map and
+ * intrusive doubly linked lists. Membership tests, moving a page to the
+ * front and removing a page are all constant time, which makes it the
+ * building block for the LRU-style lists of the eviction policies.
+ * <p>
+ * The front of the list holds the most recently added page and the back
+ * the oldest one. Dirty pages (see {@link #setDirty}) are kept on a list
+ * of their own, so that a victim that must be clean is taken from the
+ * back of the clean list without walking past the dirty ones. Each page
+ * carries the stamp of its last move to the front, which keeps the order
+ * of the two lists together. Not thread safe; callers synchronize on the
+ * policy.
+ */
+class RecencyList {
+
+    private static class Node {
+        final PageId pid;
+        Node prev;
+        Node next;
+        // when the page was last moved to the front; larger is newer
+        long stamp;
+        boolean dirty = false;
+
+        Node(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private final HashMap<PageId, Node> nodes = new HashMap<PageId, Node>();
+    // sentinels: head.next is the front (newest), head.prev the back (oldest)
+    private final Node clean;
+    private final Node dirty;
+    private long clock = 0;
+
+    RecencyList() {
+        clean = sentinel();
+        dirty = sentinel();
+    }
+
+    private static Node sentinel() {
+        Node head = new Node(null);
+        head.prev = head;
+        head.next = head;
+        return head;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public boolean contains(PageId pid) {
+        return nodes.containsKey(pid);
+    }
+
+    /** @return true if pid is on the list and was marked dirty */
+    public boolean isDirty(PageId pid) {
+        Node n = nodes.get(pid);
+        return n != null && n.dirty;
+    }
+
+    /** Puts pid at the front of the list, moving it there if present. */
+    public void addFirst(PageId pid) {
+        Node n = nodes.get(pid);
+        if (n == null) {
+            n = new Node(pid);
+            nodes.put(pid, n);
+        } else {
+            unlink(n);
+        }
+        n.stamp = ++clock;
+        Node head = n.dirty ? dirty : clean;
+        n.prev = head;
+        n.next = head.next;
+        head.next.prev = n;
+        head.next = n;
+    }
+
+    /** @return true if pid was on the list */
+    public boolean remove(PageId pid) {
+        Node n = nodes.remove(pid);
+        if (n == null) {
+            return false;
+        }
+        unlink(n);
+        return true;
+    }
+
+    /** Removes and returns the oldest page, or null if the list is empty. */
+    public PageId removeLast() {
+        Node n = older(clean.prev, dirty.prev);
+        if (n == null) {
+            return null;
+        }
+        remove(n.pid);
+        return n.pid;
+    }
+
+    /**
+     * Marks a page on the list dirty or clean, which moves it to the other
+     * list without changing its place in the order.
+     */
+    public void setDirty(PageId pid, boolean isDirty) {
+        Node n = nodes.get(pid);
+        if (n == null || n.dirty == isDirty) {
+            return;
+        }
+        unlink(n);
+        n.dirty = isDirty;
+        insertByStamp(isDirty ? dirty : clean, n);
+    }
+
+    /**
+     * Walks from the back of the list towards the front and returns the
+     * first page the filter accepts, or null if there is none. A filter
+     * that only takes clean pages only walks the clean list, whose back
+     * is normally the victim.
+     */
+    public PageId findLast(EvictionPolicy.Evictable filter) {
+        if (!filter.allowsDirty()) {
+            for (Node n = clean.prev; n != clean; n = n.prev) {
+                if (filter.canEvict(n.pid)) {
+                    return n.pid;
+                }
+            }
+            return null;
+        }
+        // both lists, merged by age
+        Node c = clean.prev;
+        Node d = dirty.prev;
+        Node n;
+        while ((n = older(c, d)) != null) {
+            if (n == c) {
+                c = c.prev;
+            } else {
+                d = d.prev;
+            }
+            if (filter.canEvict(n.pid)) {
+                return n.pid;
+            }
+        }
+        return null;
+    }
+
+    /** @return the older of two nodes, skipping sentinels, or null if
+        both are sentinels */
+    private Node older(Node c, Node d) {
+        if (c == clean) {
+            return d == dirty ? null : d;
+        }
+        if (d == dirty) {
+            return c;
+        }
+        return c.stamp < d.stamp ? c : d;
+    }
+
+    private static void unlink(Node n) {
+        n.prev.next = n.next;
+        n.next.prev = n.prev;
+    }
+
+    /**
+     * Links a node into the list with the given sentinel at its place by
+     * stamp. It is looked for from both ends at once, so it takes as many
+     * steps as the node is away from the nearer end: pages written by the
+     * page cleaner are near the back, pages written at commit near the
+     * front.
+     */
+    private static void insertByStamp(Node head, Node n) {
+        Node fromBack = head.prev;
+        Node fromFront = head.next;
+        Node newer;
+        while (true) {
+            if (fromBack == head || fromBack.stamp > n.stamp) {
+                newer = fromBack;
+                break;
+            }
+            if (fromFront == head || fromFront.stamp < n.stamp) {
+                newer = fromFront.prev;
+                break;
+            }
+            fromBack = fromBack.prev;
+            fromFront = fromFront.next;
+        }
+        n.prev = newer;
+        n.next = newer.next;
+        newer.next.prev = n;
+        newer.next = n;
+    }
+}
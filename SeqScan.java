@@ -16,6 +16,8 @@ public class SeqScan implements OpIterator {
     private DbFileIterator iterator;
     private DbFile f;
     private TupleDesc td;
+    // whether open() locks the whole table for reading
+    private boolean lockTable = false;
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -88,7 +90,22 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Makes the scan lock its whole table for reading when it opens, rather
+     * than page by page as it goes. This saves a lock per page on a big
+     * table, but keeps every writer out of the table until the transaction
+     * completes.
+     *
+     * @see BufferPool#lockTable
+     */
+    public void setLockTable(boolean lockTable) {
+        this.lockTable = lockTable;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
+        if (this.lockTable) {
+            Database.getBufferPool().lockTable(this.tid, this.tableId, Permissions.READ_ONLY);
+        }
         this.iterator.open();
     }
 
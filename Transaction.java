@@ -15,9 +15,17 @@ public class Transaction {
         tid = new TransactionId();
     }
 
+    /** A transaction with the given isolation; see TransactionId.Isolation */
+    public Transaction(TransactionId.Isolation isolation) {
+        tid = new TransactionId(isolation);
+    }
+
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (tid.isReadOnly()) {
+            return; // it never shows up in the log
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,35 +37,46 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    /**
+     * Finish the transaction
+     *
+     * @throws TransactionAbortedException if the transaction is optimistic
+     *         and conflicts with one that committed first; it is aborted
+     */
+    public void commit() throws IOException, TransactionAbortedException {
         transactionComplete(false);
     }
 
     /** Finish the transaction */
     public void abort() throws IOException {
-        transactionComplete(true);
+        try {
+            transactionComplete(true);
+        } catch (TransactionAbortedException e) {
+            // only a commit is validated
+            throw new RuntimeException(e);
+        }
     }
 
     /** Handle the details of transaction commit / abort */
-    public void transactionComplete(boolean abort) throws IOException {
+    public void transactionComplete(boolean abort)
+        throws IOException, TransactionAbortedException {
 
         if (started) {
             //write abort log record and rollback transaction
-            if (abort) {
+            if (abort && !tid.isReadOnly()) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } 
 
-            // Release locks and flush pages if needed
+            // Flush or log pages as needed, write the commit log record
+            // and release locks
             try {
-                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            
-            // write commit log record
-            if (!abort) {
-            	Database.getLogFile().logCommit(tid);
+                Database.getBufferPool().transactionComplete(tid, !abort);
+            } catch (TransactionAbortedException e) {
+                // failed validation; nothing it changed reached the pool
+                // or the log
+                Database.getLogFile().logAbort(tid);
+                started = false;
+                throw e;
             }
 
             //setting this here means we could possibly write multiple abort records -- OK?
@@ -10,17 +10,54 @@ public class TransactionId implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * How a transaction is kept apart from concurrent ones.
+     */
+    public enum Isolation {
+        /** Strict two-phase locking of the pages it reads and writes. */
+        LOCKING,
+        /** Reads a snapshot of the database as of its first read, without
+            taking locks (see VersionStore); it can't write. */
+        SNAPSHOT,
+        /** Reads and writes private copies of pages without taking
+            locks, and checks at commit that no page it read has changed
+            since; if one has, the commit fails and the transaction
+            aborts. Meant for workloads where transactions rarely touch
+            the same pages. */
+        OPTIMISTIC,
+        /** Strict two-phase locking like LOCKING, but it only reads, so it
+            only ever takes shared locks, and it never writes to the log:
+            not even a begin or commit record. */
+        READ_ONLY
+    }
+
     static AtomicLong counter = new AtomicLong(0);
     final long myid;
+    private final Isolation isolation;
 
     public TransactionId() {
+        this(Isolation.LOCKING);
+    }
+
+    public TransactionId(Isolation isolation) {
         myid = counter.getAndIncrement();
+        this.isolation = isolation;
     }
 
     public long getId() {
         return myid;
     }
 
+    public Isolation getIsolation() {
+        return isolation;
+    }
+
+    /** @return true if the transaction can't write (READ_ONLY or SNAPSHOT),
+        so it has nothing to log, flush or roll back */
+    public boolean isReadOnly() {
+        return isolation == Isolation.READ_ONLY || isolation == Isolation.SNAPSHOT;
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
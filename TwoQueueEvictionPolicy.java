@@ -0,0 +1,80 @@
+package simpledb;
+
+/**
+ * The full 2Q replacement algorithm (Johnson and Shasha). A page read for
+ * the first time goes on the A1in FIFO; if it is evicted from there only
+ * its id is remembered on the A1out ghost queue. A page that is read
+ * again while on A1out is considered hot and goes on the Am LRU list.
+ * <p>
+ * Pages touched once by a large scan therefore pass through A1in without
+ * pushing the hot pages in Am out of the pool.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final RecencyList a1in = new RecencyList();
+    private final RecencyList a1out = new RecencyList();
+    private final RecencyList am = new RecencyList();
+
+    // target size of A1in and maximum size of A1out, as suggested in
+    // the paper (25% and 50% of the pool)
+    private final int kin;
+    private final int kout;
+
+    public TwoQueueEvictionPolicy(int numPages) {
+        this.kin = Math.max(1, numPages / 4);
+        this.kout = Math.max(1, numPages / 2);
+    }
+
+    public void pageAccessed(PageId pid) {
+        // hits on A1in are deliberately ignored: correlated references
+        // right after the first one say nothing about long term heat
+        if (am.contains(pid)) {
+            am.addFirst(pid);
+        }
+    }
+
+    public void pageInserted(PageId pid) {
+        if (am.contains(pid) || a1in.contains(pid)) {
+            pageAccessed(pid);
+        } else if (a1out.remove(pid)) {
+            am.addFirst(pid);
+        } else {
+            a1in.addFirst(pid);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.addFirst(pid);
+            if (a1out.size() > kout) {
+                a1out.removeLast();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public void pageDirtied(PageId pid) {
+        a1in.setDirty(pid, true);
+        am.setDirty(pid, true);
+    }
+
+    public void pageCleaned(PageId pid) {
+        a1in.setDirty(pid, false);
+        am.setDirty(pid, false);
+    }
+
+    public PageId chooseVictim(PageId incoming, Evictable filter) {
+        PageId victim = null;
+        if (a1in.size() > kin) {
+            victim = a1in.findLast(filter);
+        }
+        if (victim == null) {
+            victim = am.findLast(filter);
+        }
+        if (victim == null) {
+            victim = a1in.findLast(filter);
+        }
+        return victim;
+    }
+}
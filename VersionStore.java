@@ -0,0 +1,380 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * VersionStore keeps the older committed versions of pages, so that
+ * snapshot transactions (see {@link TransactionId.Isolation#SNAPSHOT}) can
+ * read the database as it was when they started, without taking locks.
+ * <p>
+ * Commits are numbered by a clock. When a transaction commits, the last
+ * committed content of each page it changed, its before image, becomes an
+ * old version of the page, valid from the commit that wrote it until this
+ * one. A snapshot reads each page as of the clock value when it started:
+ * the committed content of the page if nothing committed to it since, or
+ * else the old version that was valid then.
+ * <p>
+ * The committed content of a page is normally its before image in the
+ * buffer pool. A page stolen from a running transaction (written to disk
+ * with its uncommitted changes) has its before image kept here until that
+ * transaction completes.
+ * <p>
+ * Old versions nobody can read any more, because every running snapshot
+ * started after they were replaced, are dropped by a background vacuum
+ * thread.
+ * <p>
+ * The store also keeps the read sets of optimistic transactions (see
+ * {@link TransactionId.Isolation#OPTIMISTIC}): the commit that wrote each
+ * page they read, so that they can check at commit time whether a page
+ * changed since. While any is running, every commit is recorded.
+ *
+ * @see BufferPool#transactionComplete
+ * @Threadsafe
+ */
+class VersionStore {
+
+    /** How often the vacuum looks for old versions to drop. */
+    static final long VACUUM_INTERVAL_MILLIS = 100;
+
+    /** A page as it was between two commits. */
+    private static class Version {
+        final Page page;
+        final long from; // commit that wrote it
+        final long until; // commit that replaced it
+
+        Version(Page page, long from, long until) {
+            this.page = page;
+            this.from = from;
+            this.until = until;
+        }
+    }
+
+    /** The pages an optimistic transaction read, and the commit that
+        wrote what it read of each. */
+    private static class ReadSet {
+        // clock value when it started; commits since are all recorded
+        final long start;
+        final ConcurrentHashMap<PageId,Long> read = new ConcurrentHashMap<PageId,Long>();
+
+        ReadSet(long start) {
+            this.start = start;
+        }
+    }
+
+    /** What is known about the history of a page. */
+    private static class PageVersions {
+        // commit that wrote the current committed content
+        long latest = 0;
+        // the committed content, while the page is stolen
+        Page stolen = null;
+        // older versions, newest first
+        final ArrayList<Version> older = new ArrayList<Version>();
+    }
+
+    // pages with history; changed only inside compute() for the page, so
+    // that each page's reads and changes are atomic
+    private final ConcurrentHashMap<PageId,PageVersions> pages =
+        new ConcurrentHashMap<PageId,PageVersions>();
+    // pages stolen from each running transaction
+    private final ConcurrentHashMap<TransactionId,Set<PageId>> stolenBy =
+        new ConcurrentHashMap<TransactionId,Set<PageId>>();
+    // the clock value each running snapshot reads at
+    private final ConcurrentHashMap<TransactionId,Long> snapshots =
+        new ConcurrentHashMap<TransactionId,Long>();
+    // the read set of each running optimistic transaction
+    private final ConcurrentHashMap<TransactionId,ReadSet> readSets =
+        new ConcurrentHashMap<TransactionId,ReadSet>();
+    // commits are installed, and snapshots start, holding this
+    private final Object commitLock = new Object();
+    private volatile long clock = 0;
+
+    private Thread vacuum = null; // protected by this
+    private boolean stopped = false; // protected by this
+
+    /** @return the clock value the transaction's snapshot reads at,
+        starting the snapshot if it has not started yet */
+    long snapshotOf(TransactionId tid) {
+        Long ts = snapshots.get(tid);
+        if (ts == null) {
+            synchronized (commitLock) {
+                ts = clock;
+                snapshots.put(tid, ts);
+            }
+            startVacuum();
+        }
+        return ts;
+    }
+
+    /** Ends the transaction's snapshot or read set, if it has one. */
+    void end(TransactionId tid) {
+        snapshots.remove(tid);
+        readSets.remove(tid);
+    }
+
+    /**
+     * Reads a page for a snapshot.
+     *
+     * @param current the page in the buffer pool, pinned by the caller
+     * @return the page as of the snapshot, which is not in the pool and
+     *         must not be changed
+     * @throws DbException if the version the snapshot needs is gone
+     */
+    Page read(PageId pid, long ts, Page current) throws DbException {
+        Page[] found = new Page[1];
+        pages.compute(pid, (k, v) -> {
+            if (v == null || v.latest <= ts) {
+                found[0] = (v != null && v.stolen != null)
+                    ? v.stolen : current.getBeforeImage();
+                return v;
+            }
+            for (Version old : v.older) {
+                if (old.from <= ts) {
+                    // never changed, so readers can share it
+                    found[0] = old.page;
+                    break;
+                }
+            }
+            return v;
+        });
+        if (found[0] == null) {
+            throw new DbException("snapshot too old to read " + pid);
+        }
+        return found[0];
+    }
+
+    /**
+     * Reads the committed content of a page for an optimistic transaction,
+     * adding the page to its read set.
+     *
+     * @param current gets the page in the buffer pool, which the caller
+     *        keeps pinned. It is called with the page's history locked, so
+     *        the page is not one a commit already replaced: an optimistic
+     *        commit puts its own copy of the page in the pool before it is
+     *        installed here.
+     * @return a copy of the committed content, which is not in the pool
+     *         and is the transaction's to change
+     */
+    Page readCommitted(TransactionId tid, PageId pid, Supplier<Page> current) {
+        ReadSet readSet = readSets.get(tid);
+        if (readSet == null) {
+            synchronized (commitLock) {
+                readSet = new ReadSet(clock);
+                readSets.put(tid, readSet);
+            }
+            startVacuum();
+        }
+        final ReadSet rs = readSet;
+        Page[] found = new Page[1];
+        pages.compute(pid, (k, v) -> {
+            found[0] = (v != null && v.stolen != null)
+                ? v.stolen.getBeforeImage() : current.get().getBeforeImage();
+            rs.read.put(pid, v == null ? 0L : v.latest);
+            return v;
+        });
+        return found[0];
+    }
+
+    /** Takes a page the transaction did not change out of its read set. */
+    void forgetRead(TransactionId tid, PageId pid) {
+        ReadSet readSet = readSets.get(tid);
+        if (readSet != null) {
+            readSet.read.remove(pid);
+        }
+    }
+
+    /** @return the pages in the transaction's read set */
+    Set<PageId> getReadSet(TransactionId tid) {
+        ReadSet readSet = readSets.get(tid);
+        if (readSet == null) {
+            return new HashSet<PageId>();
+        }
+        return new HashSet<PageId>(readSet.read.keySet());
+    }
+
+    /** @return true if a commit to the page was installed since the
+        optimistic transaction read it */
+    boolean changedSinceRead(TransactionId tid, PageId pid) {
+        ReadSet readSet = readSets.get(tid);
+        Long seen = readSet == null ? null : readSet.read.get(pid);
+        if (seen == null) {
+            return false;
+        }
+        // a page is only forgotten (read as 0) once its last commit is
+        // older than every read set, so any later commit shows up here
+        PageVersions v = pages.get(pid);
+        return v != null && v.latest > seen;
+    }
+
+    /**
+     * Keeps the committed content of a page that is about to be written
+     * to disk with the uncommitted changes of tid.
+     */
+    void pageStolen(TransactionId tid, Page page) {
+        PageId pid = page.getId();
+        pages.compute(pid, (k, v) -> {
+            if (v == null) {
+                v = new PageVersions();
+            }
+            if (v.stolen == null) {
+                v.stolen = page.getBeforeImage();
+            }
+            return v;
+        });
+        stolenBy.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
+    /**
+     * Makes the changes of a committing transaction the committed content
+     * of its pages: the previous committed content becomes an old version
+     * (if a snapshot may want it) and the before image of each page in
+     * the pool is brought up to date.
+     *
+     * @param dirtied the transaction's pages in the buffer pool
+     */
+    void commit(TransactionId tid, List<Page> dirtied) {
+        commit(tid, dirtied, Page::setBeforeImage);
+    }
+
+    /**
+     * Like {@link #commit(TransactionId, List)}, but brings the before
+     * image of each page up to date with the given function. It is called
+     * with the page's history locked; with record locking, only some of the
+     * changes on a page may be the transaction's.
+     */
+    void commit(TransactionId tid, List<Page> dirtied, Consumer<Page> setCommitted) {
+        Set<PageId> stolen = stolenBy.remove(tid);
+        if (dirtied.isEmpty() && stolen == null) {
+            return;
+        }
+        synchronized (commitLock) {
+            long commit = clock + 1;
+            // a snapshot started from now on reads at commit or later
+            boolean keepOld = !snapshots.isEmpty();
+            boolean record = keepOld || !readSets.isEmpty();
+            for (Page page : dirtied) {
+                install(page.getId(), page, commit, keepOld, record, setCommitted);
+                if (stolen != null) {
+                    stolen.remove(page.getId());
+                }
+            }
+            if (stolen != null) {
+                for (PageId pid : stolen) {
+                    install(pid, null, commit, keepOld, record, setCommitted);
+                }
+            }
+            clock = commit;
+        }
+    }
+
+    private void install(PageId pid, Page page, long commit, boolean keepOld,
+                         boolean record, Consumer<Page> setCommitted) {
+        pages.compute(pid, (k, v) -> {
+            if (v == null) {
+                if (!record) {
+                    if (page != null) {
+                        setCommitted.accept(page);
+                    }
+                    return null;
+                }
+                v = new PageVersions();
+            }
+            Page old = v.stolen != null ? v.stolen
+                : page != null ? page.getBeforeImage() : null;
+            if (keepOld && old != null) {
+                v.older.add(0, new Version(old, v.latest, commit));
+            }
+            v.stolen = null;
+            v.latest = commit;
+            if (page != null) {
+                setCommitted.accept(page);
+            }
+            return v;
+        });
+    }
+
+    /** Forgets the pages stolen from an aborted transaction, which the
+        rollback has put back on disk. */
+    void abort(TransactionId tid) {
+        Set<PageId> stolen = stolenBy.remove(tid);
+        if (stolen != null) {
+            for (PageId pid : stolen) {
+                pages.computeIfPresent(pid, (k, v) -> {
+                    v.stolen = null;
+                    return v;
+                });
+            }
+        }
+    }
+
+    /**
+     * Drops the old versions no running snapshot can read, and what is
+     * known about pages that have nothing left but a commit every
+     * snapshot and read set comes after.
+     *
+     * @return the number of versions dropped
+     */
+    int vacuum() {
+        long oldest = clock;
+        for (Long ts : snapshots.values()) {
+            oldest = Math.min(oldest, ts);
+        }
+        for (ReadSet readSet : readSets.values()) {
+            oldest = Math.min(oldest, readSet.start);
+        }
+        final long horizon = oldest;
+        int[] dropped = new int[1];
+        for (PageId pid : pages.keySet()) {
+            pages.computeIfPresent(pid, (k, v) -> {
+                int before = v.older.size();
+                v.older.removeIf(old -> old.until <= horizon);
+                dropped[0] += before - v.older.size();
+                if (v.older.isEmpty() && v.stolen == null && v.latest <= horizon) {
+                    return null;
+                }
+                return v;
+            });
+        }
+        return dropped[0];
+    }
+
+    /** @return the number of old page versions kept */
+    int getVersionCount() {
+        int n = 0;
+        for (PageVersions v : pages.values()) {
+            n += v.older.size();
+        }
+        return n;
+    }
+
+    private synchronized void startVacuum() {
+        if (vacuum != null || stopped) {
+            return;
+        }
+        vacuum = new Thread("simpledb-vacuum") {
+            public void run() {
+                while (!isInterrupted()) {
+                    try {
+                        Thread.sleep(VACUUM_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    vacuum();
+                }
+            }
+        };
+        vacuum.setDaemon(true);
+        vacuum.start();
+    }
+
+    /** Stops the vacuum thread; it is not started again. */
+    synchronized void stopVacuum() {
+        stopped = true;
+        if (vacuum != null) {
+            vacuum.interrupt();
+            vacuum = null;
+        }
+    }
+}